@@ -0,0 +1,31 @@
+package cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A cache that never blocks the caller: values are handed back as futures, which complete once the producer
+ * has run. Get one from a cache's async() method, or from CacheBuilder.buildAsync().
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public interface AsyncCache<Key, Value> {
+
+    /**
+     * Returns a future for the value at the given key, starting a load if the key isn't cached. Concurrent
+     * callers for the same key get the same future, so the producer still runs only once.
+     */
+    CompletableFuture<Value> get(Key key);
+
+    /**
+     * Returns a future for the values at all of the given keys, in the order the keys were given. It completes
+     * exceptionally if any of the loads fail.
+     */
+    CompletableFuture<Map<Key, Value>> getAll(Iterable<? extends Key> keys);
+
+    /**
+     * Returns a blocking view of the same cache.
+     */
+    Cache<Key, Value> synchronous();
+}
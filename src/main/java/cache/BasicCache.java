@@ -4,10 +4,15 @@ package cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
 /**
@@ -24,40 +29,81 @@ public class BasicCache<Key, Value> implements Cache<Key, Value> {
     private static final Logger log = LoggerFactory.getLogger(BasicCache.class);
 
     private Function<Key, Value> producer;
+    private Function<Set<Key>, Map<Key, Value>> batchProducer;
+    private Executor executor;
+    private FailurePolicy failurePolicy;
+    private Ticker ticker;
+    private StatsCounter statsCounter;
     private Map<Key, CompletableFuture<Value>> cache;
 
+    // keys whose last load failed, when negative caching; removed again once the key loads successfully
+    private Map<Key, NegativeEntry<Value>> negativeEntries;
+
     public BasicCache(Function<Key, Value> producer) {
+        this(producer, null);
+    }
+
+    /**
+     * Creates a cache that loads single keys with the producer, and loads all of the missing keys in a getAll()
+     * call with one call to the batch producer (e.g. one round-trip to a backend that supports bulk reads).
+     */
+    public BasicCache(Function<Key, Value> producer, Function<Set<Key>, Map<Key, Value>> batchProducer) {
+        this(producer, batchProducer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a cache that runs its producers on the given executor rather than the common ForkJoinPool. A
+     * producer that blocks on I/O should get its own executor (e.g. LoaderExecutors.newVirtualThreadPerTask()),
+     * otherwise it ties up the common pool threads that parallel streams and other futures rely on.
+     *
+     * @param batchProducer may be null, in which case getAll() loads each key with the producer
+     */
+    public BasicCache(
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer,
+            Executor executor
+    ) {
+        this(CacheBuilder.<Key, Value>newBuilder().executor(executor), producer, batchProducer);
+    }
+
+    BasicCache(
+            CacheBuilder<? super Key, ? super Value> builder,
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
         this.producer = producer;
+        this.batchProducer = batchProducer;
+        this.executor = builder.executor;
+        this.failurePolicy = builder.failurePolicy;
+        this.ticker = builder.ticker;
+        this.statsCounter = builder.statsCounterSupplier.get();
         this.cache = new ConcurrentHashMap<>();
+        this.negativeEntries = new ConcurrentHashMap<>();
     }
 
-    /*
-     * TODO: Implement
+    /**
+     * Returns the value at the given key, loading it if needed. The same guarantees as getUnchecked apply, but
+     * failures are passed on to the caller as they are.
      */
     @Override
     public Value get(Key key) throws InterruptedException, ExecutionException {
-        return null;
+        return getFuture(key).get();
     }
 
     /**
      * Returns the value at the given key.
      *
      * This function guarantees the producer will only be called once, even if multiple threads simultaneously
-     * call it. Additionally, any threads waiting on the producer function will block.
+     * call it. Additionally, any threads waiting on the producer function will block. If the producer fails, the
+     * cache's FailurePolicy decides whether (and when) a later call tries again.
      *
      * @param key the key associated with the cached value
      * @return the cached value
      */
     public Value getUnchecked(Key key) {
-
-        // Because computeIfAbsent is atomic, by storing the future in the concurrent hash,
-        // only a single thread will ever run the producer for a given key; multiple threads
-        // may block on completableFuture.get() to wait for the required value.
-        cache.computeIfAbsent(key, k -> CompletableFuture.supplyAsync(() -> producer.apply(k)));
-
         Value value = null;
         try {
-            value = cache.get(key).get();
+            value = getFuture(key).get();
         } catch (ExecutionException ex) {
             log.error("Unexpected exception occurred getting cache value key={}", key, ex.getCause());
             throw new RuntimeException(ex.getCause());
@@ -67,4 +113,203 @@ public class BasicCache<Key, Value> implements Cache<Key, Value> {
         }
         return value;
     }
+
+    /**
+     * Returns the values for all of the given keys, loading the missing ones together.
+     *
+     * If this cache has a batch producer, all of the keys that are neither cached nor already being loaded are
+     * passed to a single call of it. The same computeIfAbsent trick as getUnchecked applies: a placeholder future
+     * goes into the map for each missing key, so other threads asking for those keys wait on the batch load
+     * rather than starting their own, and keys that another thread is already loading are simply waited on.
+     * Without a batch producer, each missing key is loaded individually (in parallel).
+     *
+     * @param keys the keys to look up
+     * @return the values, in the order the keys were given
+     */
+    @Override
+    public Map<Key, Value> getAll(Iterable<? extends Key> keys) throws InterruptedException, ExecutionException {
+        return BatchLoader.join(getAllFutures(keys));
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public void forEachLoaded(BiConsumer<? super Key, ? super Value> action) {
+        cache.forEach((key, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                Value value = future.join();
+                if (value != null) {
+                    action.accept(key, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a view of this cache that hands back futures instead of blocking. Both views share the same
+     * entries, so a load started through one is seen by the other.
+     */
+    public AsyncCache<Key, Value> async() {
+        return new AsyncView();
+    }
+
+    private CompletableFuture<Value> getFuture(Key key) {
+        // a hit doesn't need to go through computeIfAbsent, which may lock the bin
+        CompletableFuture<Value> existing = cache.get(key);
+        if (existing != null && !isRetryDue(key, existing)) {
+            statsCounter.recordHits(1);
+            return existing;
+        }
+
+        CompletableFuture<Value> created = new CompletableFuture<>();
+        CompletableFuture<Value> future = claim(key, created);
+        if (future == created) {
+            statsCounter.recordMisses(1);
+            CompletableFuture.runAsync(() -> {
+                try {
+                    created.complete(load(key));
+                } catch (Throwable error) {
+                    created.completeExceptionally(error);
+                }
+            }, executor);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        return future;
+    }
+
+    private Map<Key, CompletableFuture<Value>> getAllFutures(Iterable<? extends Key> keys) {
+        Map<Key, CompletableFuture<Value>> toLoad = new LinkedHashMap<>();
+        Map<Key, CompletableFuture<Value>> futures = new LinkedHashMap<>();
+        for (Key key : keys) {
+            if (futures.containsKey(key)) {
+                continue;
+            }
+
+            if (batchProducer == null) {
+                futures.put(key, getFuture(key));
+            } else {
+                CompletableFuture<Value> created = new CompletableFuture<>();
+                CompletableFuture<Value> future = claim(key, created);
+                if (future == created) {
+                    toLoad.put(key, created);
+                }
+                futures.put(key, future);
+            }
+        }
+
+        if (batchProducer != null) {
+            statsCounter.recordHits(futures.size() - toLoad.size());
+            statsCounter.recordMisses(toLoad.size());
+        }
+        if (!toLoad.isEmpty()) {
+            CompletableFuture.runAsync(
+                    () -> BatchLoader.loadAll(batchProducer, toLoad, statsCounter, ticker), executor);
+        }
+        return futures;
+    }
+
+    private Value load(Key key) {
+        statsCounter.recordLoadStarted();
+        long start = ticker.read();
+        try {
+            Value value = producer.apply(key);
+            statsCounter.recordLoadSuccess(ticker.read() - start);
+            return value;
+        } catch (RuntimeException | Error error) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the future mapped to the key. If the key is missing (or its failed load is due for a retry), the
+     * given future is put in the map and returned, and the caller is then responsible for completing it.
+     */
+    private CompletableFuture<Value> claim(Key key, CompletableFuture<Value> created) {
+        CompletableFuture<Value> existing = cache.get(key);
+        while (existing != null && isRetryDue(key, existing)) {
+            // several threads may see the failure is due, but only one of them removes it, and they all still
+            // have to race through computeIfAbsent below
+            cache.remove(key, existing);
+            existing = cache.get(key);
+        }
+        if (existing != null) {
+            return existing;
+        }
+
+        // Because computeIfAbsent is atomic, by storing the future in the concurrent hash,
+        // only a single thread will ever run the producer for a given key; multiple threads
+        // may block on completableFuture.get() to wait for the required value.
+        CompletableFuture<Value> future = cache.computeIfAbsent(key, k -> created);
+
+        // registered outside of computeIfAbsent, since the callback may modify the map
+        if (future == created && failurePolicy.mode != FailurePolicy.Mode.RETAIN) {
+            created.whenComplete((value, error) -> onLoaded(key, created, value, error));
+        }
+        return future;
+    }
+
+    private void onLoaded(Key key, CompletableFuture<Value> future, Value value, Throwable error) {
+        if (!failurePolicy.isFailure(value, error)) {
+            negativeEntries.remove(key);
+            return;
+        }
+
+        if (failurePolicy.mode == FailurePolicy.Mode.EVICT) {
+            cache.remove(key, future);
+        } else {
+            negativeEntries.compute(key, (k, previous) -> {
+                int failures = (previous == null) ? 1 : previous.consecutiveFailures + 1;
+                long retryTime = ticker.read() + failurePolicy.retryDelayNanos(failures);
+                log.warn("Load failed {} time(s) in a row; caching the failure until retry key={}", failures, key);
+                return new NegativeEntry<>(future, failures, retryTime);
+            });
+        }
+    }
+
+    private boolean isRetryDue(Key key, CompletableFuture<Value> future) {
+        if (failurePolicy.mode != FailurePolicy.Mode.NEGATIVE_CACHE || !future.isDone()) {
+            return false;
+        }
+        if (!future.isCompletedExceptionally() && future.getNow(null) != null) {
+            return false;
+        }
+
+        NegativeEntry<Value> entry = negativeEntries.get(key);
+        return entry != null && entry.future == future && ticker.read() - entry.retryTime >= 0;
+    }
+
+    private static final class NegativeEntry<Value> {
+        final CompletableFuture<Value> future;
+        final int consecutiveFailures;
+        final long retryTime;
+
+        NegativeEntry(CompletableFuture<Value> future, int consecutiveFailures, long retryTime) {
+            this.future = future;
+            this.consecutiveFailures = consecutiveFailures;
+            this.retryTime = retryTime;
+        }
+    }
+
+    private class AsyncView implements AsyncCache<Key, Value> {
+
+        @Override
+        public CompletableFuture<Value> get(Key key) {
+            return getFuture(key);
+        }
+
+        @Override
+        public CompletableFuture<Map<Key, Value>> getAll(Iterable<? extends Key> keys) {
+            return BatchLoader.combine(getAllFutures(keys));
+        }
+
+        @Override
+        public Cache<Key, Value> synchronous() {
+            return BasicCache.this;
+        }
+    }
 }
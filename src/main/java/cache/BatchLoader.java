@@ -0,0 +1,77 @@
+package cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * The parts of getAll() shared by the cache implementations: completing a batch of placeholder futures from
+ * one call to a batch producer, and waiting for (or combining) a group of futures.
+ */
+final class BatchLoader {
+
+    private BatchLoader() {
+    }
+
+    /**
+     * Calls the batch producer once for all of the keys, and completes each key's future with its value. A key
+     * the producer left out of its result is completed exceptionally, as is every key if the producer throws.
+     * The call is recorded as a single load.
+     */
+    static <Key, Value> void loadAll(
+            Function<Set<Key>, Map<Key, Value>> batchProducer,
+            Map<Key, CompletableFuture<Value>> toLoad,
+            StatsCounter statsCounter,
+            Ticker ticker
+    ) {
+        statsCounter.recordLoadStarted();
+        long start = ticker.read();
+        Map<Key, Value> loaded;
+        try {
+            loaded = batchProducer.apply(Collections.unmodifiableSet(toLoad.keySet()));
+            statsCounter.recordLoadSuccess(ticker.read() - start);
+        } catch (Throwable error) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            toLoad.values().forEach(future -> future.completeExceptionally(error));
+            return;
+        }
+
+        for (Map.Entry<Key, CompletableFuture<Value>> entry : toLoad.entrySet()) {
+            Key key = entry.getKey();
+            if (loaded != null && loaded.containsKey(key)) {
+                entry.getValue().complete(loaded.get(key));
+            } else {
+                entry.getValue().completeExceptionally(
+                        new IllegalStateException("Batch producer returned no value for key=" + key));
+            }
+        }
+    }
+
+    /**
+     * Waits for every future, returning the values in the same order as the given map.
+     */
+    static <Key, Value> Map<Key, Value> join(Map<Key, CompletableFuture<Value>> futures)
+            throws InterruptedException, ExecutionException {
+        Map<Key, Value> values = new LinkedHashMap<>();
+        for (Map.Entry<Key, CompletableFuture<Value>> entry : futures.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * Returns a future that completes with all of the values, in the same order as the given map, once every
+     * future has completed. It completes exceptionally if any of them fail.
+     */
+    static <Key, Value> CompletableFuture<Map<Key, Value>> combine(Map<Key, CompletableFuture<Value>> futures) {
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<Key, Value> values = new LinkedHashMap<>();
+            futures.forEach((key, future) -> values.put(key, future.join()));
+            return values;
+        });
+    }
+}
@@ -0,0 +1,758 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A cache with a maximum size (or maximum weight), which evicts entries using the W-TinyLFU policy.
+ *
+ * Like BasicCache, each key maps to a CompletableFuture in a ConcurrentHashMap, so the producer is called only
+ * once per key no matter how many threads ask for it at the same time. On top of that, the entries are kept in
+ * three LRU queues:
+ *
+ *   - window: a small (1%) LRU that new entries enter, so bursts of brand new keys get a chance to prove
+ *     themselves
+ *   - probation / protected: a segmented LRU for the main space. An entry hit while in probation is promoted to
+ *     protected; protected overflow is demoted back to probation.
+ *
+ * When the cache is over its maximum, the entry falling out of the window (the candidate) has to beat the
+ * probation LRU entry (the victim) in a popularity contest, as estimated by a FrequencySketch. This admission
+ * step is what keeps a scan of one-hit wonders from flushing out the hot keys on skewed traffic.
+ *
+ * The LRU queues are not thread safe, so they are only touched while holding the eviction lock. Readers never
+ * wait on that lock though: a hit records itself in a lossy ReadBuffer and returns, and the buffered reads are
+ * replayed by whoever next gets the lock (a reader only ever tryLock()s). Writes (i.e. newly loaded entries) are
+ * queued in a write buffer and applied immediately, so the size bound is enforced as soon as a load completes. An
+ * entry only joins the policy once its load is done, so an entry that's still loading is never evicted (and its
+ * key never loaded twice at once); the cache can go over its maximum by the number of loads in flight.
+ *
+ * Entries can also expire a fixed time after they were loaded or last read, or be refreshed in the background
+ * after a fixed time (see CacheBuilder). An expired entry is never returned: reads check the entry's deadline and
+ * load a fresh value in its place. Expired entries that nobody reads are swept out by a TimerWheel as part of the
+ * same maintenance that applies the eviction policy. What happens when the producer fails is up to the
+ * FailurePolicy; by default, the failure is cached like any other value.
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public class BoundedCache<Key, Value> implements Cache<Key, Value> {
+    private static final Logger log = LoggerFactory.getLogger(BoundedCache.class);
+
+    private static final int NEW = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+    private static final int RETIRED = 4;
+
+    private static final double WINDOW_PERCENTAGE = 0.01;
+    private static final double PROTECTED_PERCENTAGE = 0.80;
+
+    private final Function<Key, Value> producer;
+    private final Function<Set<Key>, Map<Key, Value>> batchProducer;
+    private final Executor executor;
+    private final FailurePolicy failurePolicy;
+    private final StatsCounter statsCounter;
+    private final Weigher<? super Key, ? super Value> weigher;
+    private final ConcurrentHashMap<Key, Node<Key, Value>> cache;
+    private final Ticker ticker;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final long refreshAfterWriteNanos;
+    private final long shortestExpiryNanos;
+
+    private final ReadBuffer<Node<Key, Value>> readBuffer = new ReadBuffer<>();
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // everything below is guarded by the eviction lock
+    private final FrequencySketch<Key> sketch = new FrequencySketch<>();
+    private final AccessOrderDeque<Key, Value> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<Key, Value> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<Key, Value> protectedQueue = new AccessOrderDeque<>();
+    private final TimerWheel<Key, Value> timerWheel;
+    private final boolean evicts;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long totalWeight;
+    private long windowWeight;
+    private long protectedWeight;
+
+    /**
+     * Creates a cache that holds at most maximumSize entries.
+     */
+    public BoundedCache(Function<Key, Value> producer, long maximumSize) {
+        this(CacheBuilder.<Key, Value>newBuilder().maximumSize(maximumSize), producer, null);
+    }
+
+    /**
+     * Creates a cache whose entries' weights add up to at most maximumWeight. An entry doesn't count toward the
+     * maximum while its value is being loaded.
+     */
+    public BoundedCache(Function<Key, Value> producer, long maximumWeight, Weigher<? super Key, ? super Value> weigher) {
+        this(CacheBuilder.<Key, Value>newBuilder().maximumWeight(maximumWeight, weigher), producer, null);
+    }
+
+    BoundedCache(
+            CacheBuilder<? super Key, ? super Value> builder,
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
+        this.producer = producer;
+        this.batchProducer = batchProducer;
+        this.executor = builder.executor;
+        this.failurePolicy = builder.failurePolicy;
+        this.statsCounter = builder.statsCounterSupplier.get();
+        this.weigher = builder.weigher;
+        this.cache = new ConcurrentHashMap<>();
+        this.ticker = builder.ticker;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+        this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+
+        this.evicts = builder.maximumWeight != CacheBuilder.UNSET;
+        this.maximumWeight = evicts ? builder.maximumWeight : Long.MAX_VALUE;
+        this.windowMaximum = Math.max(Math.min(maximumWeight, 1), (long) (maximumWeight * WINDOW_PERCENTAGE));
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * PROTECTED_PERCENTAGE);
+        if (evicts && weigher == Weigher.singleton()) {
+            sketch.ensureCapacity(maximumWeight);
+        }
+
+        this.shortestExpiryNanos = Math.min(
+                expireAfterWriteNanos == CacheBuilder.UNSET ? Long.MAX_VALUE : expireAfterWriteNanos,
+                expireAfterAccessNanos == CacheBuilder.UNSET ? Long.MAX_VALUE : expireAfterAccessNanos);
+        this.timerWheel = expires() ? new TimerWheel<>(this, shortestExpiryNanos, ticker.read()) : null;
+    }
+
+    @Override
+    public Value get(Key key) throws InterruptedException, ExecutionException {
+        return getNode(key, null).future.get();
+    }
+
+    /**
+     * Returns the value at the given key.
+     *
+     * This function guarantees the producer will only be called once while the key is cached, even if multiple
+     * threads simultaneously call it, and whichever executor runs the load; threads waiting on the producer
+     * function will block. A key can't be evicted while it's loading, so loads of the same key never overlap. Once
+     * the key has been evicted (after its load completed), the next call will run the producer again.
+     *
+     * @param key the key associated with the cached value
+     * @return the cached value
+     */
+    @Override
+    public Value getUnchecked(Key key) {
+        Value value = null;
+        try {
+            value = get(key);
+        } catch (ExecutionException ex) {
+            log.error("Unexpected exception occurred getting cache value key={}", key, ex.getCause());
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            log.error("Interrupted!");
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public void forEachLoaded(BiConsumer<? super Key, ? super Value> action) {
+        long now = usesTicker() ? ticker.read() : 0L;
+        cache.forEach((key, node) -> {
+            CompletableFuture<Value> future = node.future;
+            if (future.isDone() && !future.isCompletedExceptionally() && !isExpired(node, now)) {
+                Value value = future.join();
+                if (value != null) {
+                    action.accept(key, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of entries in the cache, including those still loading. Evictions are applied
+     * synchronously on writes, so this will not exceed the maximum size (plus the number of loads in flight,
+     * which can't be evicted) for long.
+     */
+    public long estimatedSize() {
+        return cache.size();
+    }
+
+    /**
+     * Applies any pending reads and writes to the eviction policy right away. There is normally no need to call
+     * this; it exists mainly so tests can observe the policy in a settled state.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the values for all of the given keys, loading the missing ones together.
+     *
+     * If this cache has a batch producer, all of the keys that are neither cached nor already being loaded are
+     * passed to a single call of it; keys that another thread is already loading join that load instead of being
+     * loaded twice. Without a batch producer, each missing key is loaded individually (in parallel).
+     *
+     * @param keys the keys to look up
+     * @return the values, in the order the keys were given
+     */
+    @Override
+    public Map<Key, Value> getAll(Iterable<? extends Key> keys) throws InterruptedException, ExecutionException {
+        return BatchLoader.join(getAllFutures(keys));
+    }
+
+    /**
+     * Returns a view of this cache that hands back futures instead of blocking. Both views share the same
+     * entries, so a load started through one is seen by the other.
+     */
+    public AsyncCache<Key, Value> async() {
+        return new AsyncView();
+    }
+
+    private Map<Key, CompletableFuture<Value>> getAllFutures(Iterable<? extends Key> keys) {
+        Map<Key, CompletableFuture<Value>> toLoad = (batchProducer == null) ? null : new LinkedHashMap<>();
+        Map<Key, CompletableFuture<Value>> futures = new LinkedHashMap<>();
+        for (Key key : keys) {
+            if (!futures.containsKey(key)) {
+                futures.put(key, getNode(key, toLoad).future);
+            }
+        }
+
+        if (toLoad != null && !toLoad.isEmpty()) {
+            CompletableFuture.runAsync(
+                    () -> BatchLoader.loadAll(batchProducer, toLoad, statsCounter, ticker), executor);
+        }
+        return futures;
+    }
+
+    /**
+     * @param toLoad if not null, a missing key gets a placeholder future that is added to this map for the caller
+     *               to complete with a batch load; otherwise, the producer is called for the key
+     */
+    private Node<Key, Value> getNode(Key key, Map<Key, CompletableFuture<Value>> toLoad) {
+        long now = usesTicker() ? ticker.read() : 0L;
+
+        Node<Key, Value> node = cache.get(key);
+        if (node != null && !isExpired(node, now)) {
+            onRead(node, now);
+            return node;
+        }
+
+        // As in BasicCache, the map operation is atomic, so only one thread creates the node (and so starts the
+        // load); the others get the same node back and wait on its future. compute() rather than computeIfAbsent()
+        // lets an expired node be swapped out under the same guarantee. The node is installed with an incomplete
+        // future and the load is only started once compute() has returned: with a direct executor, the producer
+        // would otherwise run while the bin is locked, and deadlock (or fail with "Recursive update") if it reads
+        // this cache itself.
+        Node<Key, Value> created = new Node<>(key);
+        CompletableFuture<Value> loading = new CompletableFuture<>();
+        node = cache.compute(key, (k, existing) -> {
+            if (existing != null && !isExpired(existing, now)) {
+                return existing;
+            }
+            // The node only joins the eviction policy once its load is done. If a node that's still loading could
+            // be chosen as a victim, the next read of its key would miss and start a second load of the same key
+            // while the first is still running. Readers wait on the future that completes after the node was
+            // added, so the size bound already holds when they get the value.
+            created.future = loading.whenComplete((value, error) -> {
+                onLoaded(created, value, error);
+                afterWrite(() -> onAdd(created));
+            });
+            if (toLoad != null) {
+                toLoad.put(k, loading);
+            }
+            created.writeTime = now;
+            created.accessTime = now;
+            created.replaced = existing;
+            if (existing != null && existing.negative) {
+                created.consecutiveFailures = existing.consecutiveFailures;
+            }
+            return created;
+        });
+
+        if (node == created) {
+            statsCounter.recordMisses(1);
+            if (toLoad == null) {
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        loading.complete(load(key));
+                    } catch (Throwable error) {
+                        loading.completeExceptionally(error);
+                    }
+                }, executor);
+            }
+        } else {
+            onRead(node, now);
+        }
+        return node;
+    }
+
+    private void onRead(Node<Key, Value> node, long now) {
+        statsCounter.recordHits(1);
+        if (expireAfterAccessNanos != CacheBuilder.UNSET) {
+            node.accessTime = now;
+        }
+        if (refreshAfterWriteNanos != CacheBuilder.UNSET) {
+            refreshIfNeeded(node, now);
+        }
+        afterRead(node);
+    }
+
+    private void onLoaded(Node<Key, Value> node, Value value, Throwable error) {
+        if (usesTicker()) {
+            // the clock for expiry and refresh starts once the value is actually available
+            long now = ticker.read();
+            node.writeTime = now;
+            node.accessTime = now;
+        }
+        if (failurePolicy.isFailure(value, error)) {
+            onLoadFailed(node);
+        }
+        if (weigher != Weigher.singleton()) {
+            int weight = (error == null) ? weigher.weigh(node.key, value) : 1;
+            afterWrite(() -> onWeightChange(node, weight));
+        }
+    }
+
+    /**
+     * Applies the failure policy: an evicted failure is removed right away, and a negatively cached one becomes
+     * expired once its retry time comes around, so the next read loads the key again.
+     */
+    private void onLoadFailed(Node<Key, Value> node) {
+        if (failurePolicy.mode == FailurePolicy.Mode.EVICT) {
+            afterWrite(() -> retire(node));
+        } else if (failurePolicy.mode == FailurePolicy.Mode.NEGATIVE_CACHE) {
+            int failures = node.consecutiveFailures + 1;
+            node.consecutiveFailures = failures;
+            node.retryTime = ticker.read() + failurePolicy.retryDelayNanos(failures);
+            node.negative = true;
+            log.warn("Load failed {} time(s) in a row; caching the failure until retry key={}", failures, node.key);
+        }
+    }
+
+    /**
+     * Starts a background reload if the value is older than the refresh interval. Only one reload runs per
+     * entry at a time, and until it finishes every reader keeps getting the current value.
+     */
+    private void refreshIfNeeded(Node<Key, Value> node, long now) {
+        CompletableFuture<Value> current = node.future;
+        if (!current.isDone() || current.isCompletedExceptionally() || now - node.writeTime < refreshAfterWriteNanos) {
+            return;
+        }
+        if (!REFRESHING.compareAndSet(node, 0, 1)) {
+            return;
+        }
+
+        CompletableFuture.supplyAsync(() -> load(node.key), executor).whenComplete((value, error) -> {
+            if (!failurePolicy.isFailure(value, error)) {
+                node.future = CompletableFuture.completedFuture(value);
+                onLoaded(node, value, null);
+            } else {
+                log.warn("Refresh failed, continuing to serve the previous value key={}", node.key, error);
+            }
+            node.refreshing = 0;
+        });
+    }
+
+    private Value load(Key key) {
+        statsCounter.recordLoadStarted();
+        long start = ticker.read();
+        try {
+            Value value = producer.apply(key);
+            statsCounter.recordLoadSuccess(ticker.read() - start);
+            return value;
+        } catch (RuntimeException | Error error) {
+            statsCounter.recordLoadFailure(ticker.read() - start);
+            throw error;
+        }
+    }
+
+    private boolean usesTicker() {
+        return timerWheel != null
+                || refreshAfterWriteNanos != CacheBuilder.UNSET
+                || failurePolicy.mode == FailurePolicy.Mode.NEGATIVE_CACHE;
+    }
+
+    private boolean expires() {
+        return expireAfterWriteNanos != CacheBuilder.UNSET || expireAfterAccessNanos != CacheBuilder.UNSET;
+    }
+
+    private boolean isExpired(Node<Key, Value> node, long now) {
+        if (node.negative && now - node.retryTime >= 0) {
+            return true;
+        }
+        return timerWheel != null && node.future.isDone() && expirationTime(node, now) - now <= 0;
+    }
+
+    /**
+     * Returns when the node expires. A node that is still loading can't expire, so its deadline is pushed out by
+     * an expiry duration.
+     */
+    long expirationTime(Node<Key, Value> node, long now) {
+        if (!node.future.isDone()) {
+            return now + shortestExpiryNanos;
+        }
+
+        long expirationTime = Long.MAX_VALUE;
+        if (expireAfterWriteNanos != CacheBuilder.UNSET) {
+            expirationTime = node.writeTime + expireAfterWriteNanos;
+        }
+        if (expireAfterAccessNanos != CacheBuilder.UNSET) {
+            long accessExpiration = node.accessTime + expireAfterAccessNanos;
+            if (expirationTime == Long.MAX_VALUE || accessExpiration - expirationTime < 0) {
+                expirationTime = accessExpiration;
+            }
+        }
+        return expirationTime;
+    }
+
+    /**
+     * Called by the timer wheel for a node whose deadline has passed.
+     */
+    void expire(Node<Key, Value> node) {
+        log.debug("Expired key={}", node.key);
+        evict(node);
+    }
+
+    private void afterRead(Node<Key, Value> node) {
+        boolean drainNeeded = readBuffer.offer(node);
+        if (drainNeeded && evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        cleanUp();
+    }
+
+    private void maintenance() {
+        readBuffer.drainTo(this::onAccess);
+
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        if (timerWheel != null) {
+            timerWheel.advance(ticker.read());
+        }
+        if (evicts) {
+            evictEntries();
+        }
+    }
+
+    private void onAdd(Node<Key, Value> node) {
+        if (node.replaced != null) {
+            // an expired node that this one took the place of in the map
+            evict(node.replaced);
+            node.replaced = null;
+        }
+        if (node.queue != NEW) {
+            return;
+        }
+        if (timerWheel != null) {
+            timerWheel.schedule(node, expirationTime(node, ticker.read()));
+        }
+        if (!evicts) {
+            node.queue = WINDOW;
+            return;
+        }
+
+        long size = cache.size();
+        if (weigher != Weigher.singleton() && size > maximumWeight / 2) {
+            // with a custom weigher, we can't know up front how many entries will fit
+            sketch.ensureCapacity(size * 2);
+        }
+        sketch.increment(node.key);
+
+        node.queue = WINDOW;
+        window.addLast(node);
+        windowWeight += node.weight;
+        totalWeight += node.weight;
+    }
+
+    private void onAccess(Node<Key, Value> node) {
+        if (!evicts || node.queue == NEW || node.queue == RETIRED) {
+            return;
+        }
+        sketch.increment(node.key);
+
+        if (node.queue == WINDOW) {
+            window.moveToBack(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.weight;
+            demoteFromProtected();
+        } else {
+            protectedQueue.moveToBack(node);
+        }
+    }
+
+    private void onWeightChange(Node<Key, Value> node, int weight) {
+        if (weight < 0) {
+            throw new IllegalStateException("weigher returned a negative weight: " + weight);
+        }
+        if (node.queue == NEW) {
+            // a node that just finished loading; it's added with this weight once the add task runs
+            node.weight = weight;
+            return;
+        }
+        if (!evicts || node.queue == RETIRED) {
+            return;
+        }
+
+        int delta = weight - node.weight;
+        node.weight = weight;
+        totalWeight += delta;
+        if (node.queue == WINDOW) {
+            windowWeight += delta;
+        } else if (node.queue == PROTECTED) {
+            protectedWeight += delta;
+            demoteFromProtected();
+        }
+    }
+
+    private void demoteFromProtected() {
+        while (protectedWeight > protectedMaximum) {
+            Node<Key, Value> demoted = protectedQueue.pollFirst();
+            if (demoted == null) {
+                return;
+            }
+            protectedWeight -= demoted.weight;
+            demoted.queue = PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    /**
+     * Moves the window overflow into probation as candidates, then evicts until the cache is back under its
+     * maximum. Each candidate is compared against the probation LRU victim, and the less popular of the two goes.
+     */
+    private void evictEntries() {
+        Node<Key, Value> candidate = null;
+        while (windowWeight > windowMaximum) {
+            Node<Key, Value> node = window.pollFirst();
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (totalWeight > maximumWeight) {
+            Node<Key, Value> victim = probation.peekFirst();
+            if (victim == candidate) {
+                // only candidates are left in probation, so they have to compete with the protected entries
+                victim = protectedQueue.peekFirst();
+            }
+
+            if (victim == null) {
+                victim = (candidate != null) ? candidate : window.peekFirst();
+                if (victim == null) {
+                    return;
+                }
+                if (victim == candidate) {
+                    candidate = candidate.next;
+                }
+                evict(victim);
+            } else if (candidate == null) {
+                evict(victim);
+            } else {
+                Node<Key, Value> nextCandidate = candidate.next;
+                evict(admit(candidate.key, victim.key) ? victim : candidate);
+                candidate = nextCandidate;
+            }
+        }
+    }
+
+    /**
+     * Decides if the candidate should replace the victim. A small amount of randomness for moderately popular
+     * candidates stops an attacker from keeping a victim pinned by exploiting hash collisions in the sketch.
+     */
+    private boolean admit(Key candidateKey, Key victimKey) {
+        int candidateFrequency = sketch.frequency(candidateKey);
+        int victimFrequency = sketch.frequency(victimKey);
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        } else if (candidateFrequency <= 5) {
+            return false;
+        }
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+
+    private void evict(Node<Key, Value> node) {
+        if (retire(node)) {
+            statsCounter.recordEviction();
+        }
+    }
+
+    /**
+     * Takes the node out of the eviction policy and the map, returning false if it was already retired.
+     */
+    private boolean retire(Node<Key, Value> node) {
+        if (node.queue == RETIRED) {
+            return false;
+        }
+        if (timerWheel != null) {
+            timerWheel.deschedule(node);
+        }
+        if (!evicts || node.queue == NEW) {
+            node.queue = RETIRED;
+            cache.remove(node.key, node);
+            return true;
+        }
+
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            windowWeight -= node.weight;
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.remove(node);
+            protectedWeight -= node.weight;
+        }
+        totalWeight -= node.weight;
+        node.queue = RETIRED;
+
+        // only remove the mapping if it still points at this node
+        cache.remove(node.key, node);
+        return true;
+    }
+
+    private class AsyncView implements AsyncCache<Key, Value> {
+
+        @Override
+        public CompletableFuture<Value> get(Key key) {
+            return getNode(key, null).future;
+        }
+
+        @Override
+        public CompletableFuture<Map<Key, Value>> getAll(Iterable<? extends Key> keys) {
+            return BatchLoader.combine(getAllFutures(keys));
+        }
+
+        @Override
+        public Cache<Key, Value> synchronous() {
+            return BoundedCache.this;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Node> REFRESHING =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+    /**
+     * A cache entry. The future is set inside compute(), before the node is visible to other threads, and only
+     * replaced afterwards by a refresh; the times are written racily but are only used as deadlines. The failure
+     * count is written by the load's callback before the volatile negative flag, and read only after it. The
+     * remaining fields are guarded by the eviction lock.
+     */
+    static final class Node<Key, Value> {
+        final Key key;
+        volatile CompletableFuture<Value> future;
+        volatile long writeTime;
+        volatile long accessTime;
+        volatile int refreshing;
+        volatile long retryTime;
+        volatile boolean negative;
+        int consecutiveFailures;
+
+        int queue = NEW;
+        int weight = 1;
+        Node<Key, Value> replaced;
+        Node<Key, Value> prev;
+        Node<Key, Value> next;
+        Node<Key, Value> timerPrev;
+        Node<Key, Value> timerNext;
+
+        Node(Key key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A doubly linked list threaded through the nodes themselves, so moving an entry costs no allocation.
+     */
+    private static final class AccessOrderDeque<Key, Value> {
+        private Node<Key, Value> first;
+        private Node<Key, Value> last;
+
+        Node<Key, Value> peekFirst() {
+            return first;
+        }
+
+        Node<Key, Value> pollFirst() {
+            Node<Key, Value> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void addLast(Node<Key, Value> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void moveToBack(Node<Key, Value> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void remove(Node<Key, Value> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+    }
+}
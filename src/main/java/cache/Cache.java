@@ -1,8 +1,22 @@
 package cache;
 
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 
 public interface Cache<Key, Value> {
     Value get(Key key) throws InterruptedException, ExecutionException;
     Value getUnchecked(Key key);
+    Map<Key, Value> getAll(Iterable<? extends Key> keys) throws InterruptedException, ExecutionException;
+
+    /**
+     * Returns a snapshot of the cache's statistics; all zeros unless the cache was built with recordStats().
+     */
+    CacheStats stats();
+
+    /**
+     * Calls the action for every entry whose value has finished loading successfully. Entries that are still
+     * loading, failed, or expired are skipped, and entries added while this runs may or may not be seen.
+     */
+    void forEachLoaded(BiConsumer<? super Key, ? super Value> action);
 }
@@ -0,0 +1,340 @@
+package cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Benchmarks the caches in this package against a plain ConcurrentHashMap and a synchronized HashMap.
+ *
+ * Every thread replays its own precomputed sequence of operations, so generating keys isn't part of what's
+ * measured. The sequence is made up of:
+ *
+ *   - reads: a key drawn from the populated key space, using either a uniform or a Zipfian (a few keys are very
+ *     popular, most are rarely asked for) distribution. For the caches this is getUnchecked; for the maps it's
+ *     computeIfAbsent, which is how a map is usually turned into a cache.
+ *   - writes: the caches can only be written to by loading, so a write is a read of a key outside the populated
+ *     key space, which misses, loads, and (for a BoundedCache) evicts something to make room. The maps just put()
+ *     a new value for a populated key. BasicCache and IntCache never evict, so once they have loaded every cold
+ *     key, their writes turn into hits.
+ *
+ * The workload decides the mix: read-heavy is 95% reads, mixed is 50% and write-heavy is 10%.
+ *
+ * Run main() to sweep the thread count from 1 up to all of the cores, with the GC profiler reporting the
+ * allocation rate (gc.alloc.rate.norm is bytes per operation). Any JMH command line options are passed through,
+ * e.g. `-p cacheType=BoundedCache` to run a single implementation.
+ *
+ * The sweep doubles as the scaling test: with `-p cacheType=ShardedCache,BoundedCache -p workload=READ_HEAVY`,
+ * ShardedCache's throughput should grow almost linearly with the thread count, where a single BoundedCache
+ * flattens out on its shared eviction lock and counters.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+
+    private static final int KEY_SPACE = 1 << 14;
+    private static final int COLD_KEY_SPACE = KEY_SPACE << 4;
+    private static final int OPERATIONS = 1 << 16;
+    private static final int MASK = OPERATIONS - 1;
+    private static final Function<Integer, Integer> PRODUCER = key -> key;
+
+    @Param({"BasicCache", "BoundedCache", "ShardedCache", "IntCache", "ConcurrentHashMap", "SynchronizedHashMap"})
+    String cacheType;
+
+    @Param({"ZIPFIAN", "UNIFORM"})
+    Distribution distribution;
+
+    @Param({"READ_HEAVY", "MIXED", "WRITE_HEAVY"})
+    Workload workload;
+
+    BenchmarkCache cache;
+    Integer[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = BenchmarkCache.create(cacheType, KEY_SPACE);
+
+        // boxed once up front, so the benchmark doesn't measure Integer.valueOf
+        keys = new Integer[KEY_SPACE + COLD_KEY_SPACE];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+        }
+        for (int i = 0; i < KEY_SPACE; i++) {
+            cache.read(keys[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Operations {
+        Integer[] keys;
+        boolean[] writes;
+        int index;
+
+        @Setup(Level.Trial)
+        public void setup(CacheBenchmark benchmark) {
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+            KeyGenerator generator = benchmark.distribution.newGenerator(KEY_SPACE, random);
+            keys = new Integer[OPERATIONS];
+            writes = new boolean[OPERATIONS];
+            int coldKey = random.nextInt(COLD_KEY_SPACE);
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                writes[i] = random.nextInt(100) >= benchmark.workload.readPercentage;
+                if (writes[i] && benchmark.cache.writesByLoading()) {
+                    keys[i] = benchmark.keys[KEY_SPACE + (coldKey++ % COLD_KEY_SPACE)];
+                } else {
+                    keys[i] = benchmark.keys[generator.nextKey()];
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Integer access(Operations operations) {
+        int i = operations.index++ & MASK;
+        Integer key = operations.keys[i];
+        if (operations.writes[i]) {
+            return cache.write(key);
+        }
+        return cache.read(key);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(CacheBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads);
+            new Runner(options.build()).run();
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+
+    public enum Workload {
+        READ_HEAVY(95),
+        MIXED(50),
+        WRITE_HEAVY(10);
+
+        final int readPercentage;
+
+        Workload(int readPercentage) {
+            this.readPercentage = readPercentage;
+        }
+    }
+
+    public enum Distribution {
+        UNIFORM {
+            @Override
+            KeyGenerator newGenerator(int keySpace, Random random) {
+                return () -> random.nextInt(keySpace);
+            }
+        },
+        ZIPFIAN {
+            @Override
+            KeyGenerator newGenerator(int keySpace, Random random) {
+                return new ZipfianGenerator(keySpace, random);
+            }
+        };
+
+        abstract KeyGenerator newGenerator(int keySpace, Random random);
+    }
+
+    interface KeyGenerator {
+        int nextKey();
+    }
+
+    /**
+     * Draws keys in [0, keySpace) where the key of rank n is picked with a probability proportional to 1/n^0.99,
+     * using the method from "Quickly Generating Billion-Record Synthetic Databases" (Gray et al.), as YCSB does.
+     * The ranks are then scattered over the key space, so the popular keys aren't all next to each other.
+     */
+    static final class ZipfianGenerator implements KeyGenerator {
+        private static final double THETA = 0.99;
+
+        private final int keySpace;
+        private final Random random;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        ZipfianGenerator(int keySpace, Random random) {
+            this.keySpace = keySpace;
+            this.random = random;
+            this.zetaN = zeta(keySpace);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1 - Math.pow(2.0 / keySpace, 1 - THETA)) / (1 - zeta(2) / zetaN);
+        }
+
+        @Override
+        public int nextKey() {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            int rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, THETA)) {
+                rank = 1;
+            } else {
+                rank = (int) (keySpace * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return scatter(Math.min(rank, keySpace - 1));
+        }
+
+        private int scatter(int rank) {
+            // multiplying by an odd constant is a bijection modulo a power of two
+            return (rank * 0x9E3779B1) & (keySpace - 1);
+        }
+
+        private static double zeta(int n) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * The two operations the benchmark needs, over the implementations being compared. The caches load on the
+     * calling thread, so a miss measures the cache's own bookkeeping rather than handing off to a thread pool.
+     */
+    abstract static class BenchmarkCache {
+        abstract Integer read(Integer key);
+
+        abstract Integer write(Integer key);
+
+        /**
+         * True if a write has to load a new key, rather than replace a populated key's value.
+         */
+        abstract boolean writesByLoading();
+
+        static BenchmarkCache create(String cacheType, int maximumSize) {
+            switch (cacheType) {
+                case "BasicCache":
+                    return new LoadingCache(CacheBuilder.<Integer, Integer>newBuilder()
+                            .executor(Runnable::run)
+                            .build(PRODUCER));
+                case "BoundedCache":
+                    return new LoadingCache(CacheBuilder.<Integer, Integer>newBuilder()
+                            .maximumSize(maximumSize)
+                            .executor(Runnable::run)
+                            .build(PRODUCER));
+                case "ShardedCache":
+                    return new LoadingCache(CacheBuilder.<Integer, Integer>newBuilder()
+                            .maximumSize(maximumSize)
+                            .segments(4 * Runtime.getRuntime().availableProcessors())
+                            .executor(Runnable::run)
+                            .build(PRODUCER));
+                case "IntCache":
+                    return new PrimitiveCache(new IntCache<>(key -> key, maximumSize));
+                case "ConcurrentHashMap":
+                    return new MapCache(new ConcurrentHashMap<>());
+                case "SynchronizedHashMap":
+                    return new MapCache(Collections.synchronizedMap(new HashMap<>()));
+                default:
+                    throw new IllegalArgumentException("unknown cache type: " + cacheType);
+            }
+        }
+    }
+
+    private static final class LoadingCache extends BenchmarkCache {
+        private final Cache<Integer, Integer> cache;
+
+        LoadingCache(Cache<Integer, Integer> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        Integer read(Integer key) {
+            return cache.getUnchecked(key);
+        }
+
+        @Override
+        Integer write(Integer key) {
+            return cache.getUnchecked(key);
+        }
+
+        @Override
+        boolean writesByLoading() {
+            return true;
+        }
+    }
+
+    private static final class PrimitiveCache extends BenchmarkCache {
+        private final IntCache<Integer> cache;
+
+        PrimitiveCache(IntCache<Integer> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        Integer read(Integer key) {
+            return cache.getUnchecked(key);
+        }
+
+        @Override
+        Integer write(Integer key) {
+            return cache.getUnchecked(key);
+        }
+
+        @Override
+        boolean writesByLoading() {
+            return true;
+        }
+    }
+
+    private static final class MapCache extends BenchmarkCache {
+        private final Map<Integer, Integer> map;
+
+        MapCache(Map<Integer, Integer> map) {
+            this.map = map;
+        }
+
+        @Override
+        Integer read(Integer key) {
+            return map.computeIfAbsent(key, PRODUCER);
+        }
+
+        @Override
+        Integer write(Integer key) {
+            return map.put(key, key);
+        }
+
+        @Override
+        boolean writesByLoading() {
+            return false;
+        }
+    }
+}
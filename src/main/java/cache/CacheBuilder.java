@@ -0,0 +1,287 @@
+package cache;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Configures and creates a cache. Every setting is optional; a cache built without a maximum size, expiry or
+ * refresh is simply a BasicCache, and anything else is a BoundedCache.
+ *
+ * <pre>
+ *   Cache&lt;String, Rates&gt; rates = CacheBuilder.&lt;String, Rates&gt;newBuilder()
+ *           .maximumSize(10_000)
+ *           .refreshAfterWrite(1, TimeUnit.MINUTES)
+ *           .expireAfterWrite(1, TimeUnit.HOURS)
+ *           .build(this::loadRates);
+ * </pre>
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public final class CacheBuilder<Key, Value> {
+    static final long UNSET = -1;
+
+    long maximumWeight = UNSET;
+    Weigher<? super Key, ? super Value> weigher = Weigher.singleton();
+    long expireAfterWriteNanos = UNSET;
+    long expireAfterAccessNanos = UNSET;
+    long refreshAfterWriteNanos = UNSET;
+    Ticker ticker = Ticker.systemTicker();
+    Executor executor = ForkJoinPool.commonPool();
+    FailurePolicy failurePolicy = FailurePolicy.retain();
+    Supplier<? extends StatsCounter> statsCounterSupplier = StatsCounter::disabled;
+    int segments = 1;
+    long offHeapBytes = UNSET;
+    Codec<Value> offHeapCodec;
+
+    private CacheBuilder() {
+    }
+
+    public static <Key, Value> CacheBuilder<Key, Value> newBuilder() {
+        return new CacheBuilder<>();
+    }
+
+    /**
+     * Bounds the cache to the given number of entries.
+     */
+    public CacheBuilder<Key, Value> maximumSize(long maximumSize) {
+        requireUnset(maximumWeight, "maximum size/weight");
+        requireNonNegative(maximumSize, "maximumSize");
+        this.maximumWeight = maximumSize;
+        return this;
+    }
+
+    /**
+     * Bounds the cache so that the weights of its entries, as measured by the weigher, add up to at most
+     * maximumWeight.
+     */
+    public CacheBuilder<Key, Value> maximumWeight(long maximumWeight, Weigher<? super Key, ? super Value> weigher) {
+        requireUnset(this.maximumWeight, "maximum size/weight");
+        requireNonNegative(maximumWeight, "maximumWeight");
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        return this;
+    }
+
+    /**
+     * Expires an entry once the given time has passed since its value was loaded.
+     */
+    public CacheBuilder<Key, Value> expireAfterWrite(long duration, TimeUnit unit) {
+        requireUnset(expireAfterWriteNanos, "expireAfterWrite");
+        this.expireAfterWriteNanos = toPositiveNanos(duration, unit, "expireAfterWrite");
+        return this;
+    }
+
+    /**
+     * Expires an entry once the given time has passed since it was last read (or loaded).
+     */
+    public CacheBuilder<Key, Value> expireAfterAccess(long duration, TimeUnit unit) {
+        requireUnset(expireAfterAccessNanos, "expireAfterAccess");
+        this.expireAfterAccessNanos = toPositiveNanos(duration, unit, "expireAfterAccess");
+        return this;
+    }
+
+    /**
+     * Reloads an entry in the background once the given time has passed since its value was loaded. Until the
+     * reload finishes, callers keep getting the old value rather than blocking. Only entries that are actually
+     * read are refreshed, so a refresh interval shorter than an expiry interval keeps hot keys fresh while cold
+     * keys still expire.
+     */
+    public CacheBuilder<Key, Value> refreshAfterWrite(long duration, TimeUnit unit) {
+        requireUnset(refreshAfterWriteNanos, "refreshAfterWrite");
+        this.refreshAfterWriteNanos = toPositiveNanos(duration, unit, "refreshAfterWrite");
+        return this;
+    }
+
+    /**
+     * Sets the time source for expiry, refresh and negative caching; defaults to System.nanoTime().
+     */
+    public CacheBuilder<Key, Value> ticker(Ticker ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    /**
+     * Sets the executor that producers run on; defaults to the common ForkJoinPool. See LoaderExecutors for
+     * executors suited to producers that block.
+     */
+    public CacheBuilder<Key, Value> executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets what happens to keys whose producer fails; defaults to FailurePolicy.retain().
+     */
+    public CacheBuilder<Key, Value> failurePolicy(FailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+        return this;
+    }
+
+    /**
+     * Keeps hit, miss, load and eviction counts, readable through Cache.stats().
+     */
+    public CacheBuilder<Key, Value> recordStats() {
+        return recordStats(ConcurrentStatsCounter::new);
+    }
+
+    /**
+     * Sends the cache's statistics to the StatsCounter the supplier creates, e.g. one that forwards them to a
+     * metrics library. The supplier is called once for each cache built.
+     */
+    public CacheBuilder<Key, Value> recordStats(Supplier<? extends StatsCounter> statsCounterSupplier) {
+        this.statsCounterSupplier = statsCounterSupplier;
+        return this;
+    }
+
+    /**
+     * Splits the cache into the given number of independent segments (rounded up to a power of two), each with
+     * its own map, eviction policy and statistics, to cut contention on machines with many cores. A maximum size
+     * or weight is divided evenly between the segments. See ShardedCache.
+     */
+    public CacheBuilder<Key, Value> segments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive: " + segments);
+        }
+        if (segments > 1 << 16) {
+            throw new IllegalArgumentException("segments must be at most 65536: " + segments);
+        }
+        this.segments = (segments == 1) ? 1 : Integer.highestOneBit(segments - 1) << 1;
+        return this;
+    }
+
+    /**
+     * Adds an off-heap tier of up to maximumBytes behind the cache, holding values encoded with the codec. The rest
+     * of the settings (including the maximum size or weight, which is then required) apply to the on-heap front of
+     * the cache, which keeps the hot entries. See TieredCache.
+     */
+    public CacheBuilder<Key, Value> offHeap(long maximumBytes, Codec<Value> codec) {
+        requireUnset(offHeapBytes, "offHeap");
+        if (maximumBytes <= 0) {
+            throw new IllegalArgumentException("maximumBytes must be positive: " + maximumBytes);
+        }
+        this.offHeapBytes = maximumBytes;
+        this.offHeapCodec = codec;
+        return this;
+    }
+
+    public Cache<Key, Value> build(Function<Key, Value> producer) {
+        return build(producer, null);
+    }
+
+    /**
+     * Builds a cache that loads single keys with the producer, and loads all of the missing keys in a getAll()
+     * call with one call to the batch producer.
+     */
+    public Cache<Key, Value> build(Function<Key, Value> producer, Function<Set<Key>, Map<Key, Value>> batchProducer) {
+        if (offHeapBytes != UNSET) {
+            return new TieredCache<>(this, producer, batchProducer);
+        }
+        if (segments > 1) {
+            return new ShardedCache<>(this, producer, batchProducer);
+        }
+        if (isUnbounded()) {
+            return new BasicCache<>(this, producer, batchProducer);
+        }
+        return new BoundedCache<>(this, producer, batchProducer);
+    }
+
+    public AsyncCache<Key, Value> buildAsync(Function<Key, Value> producer) {
+        return buildAsync(producer, null);
+    }
+
+    /**
+     * Builds a cache that never blocks its callers; see build(producer, batchProducer).
+     */
+    public AsyncCache<Key, Value> buildAsync(
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
+        if (offHeapBytes != UNSET) {
+            return new TieredCache<>(this, producer, batchProducer).async();
+        }
+        if (segments > 1) {
+            return new ShardedCache<>(this, producer, batchProducer).async();
+        }
+        if (isUnbounded()) {
+            return new BasicCache<>(this, producer, batchProducer).async();
+        }
+        return new BoundedCache<>(this, producer, batchProducer).async();
+    }
+
+    /**
+     * Builds one segment of a ShardedCache: the same settings, with this builder's share of the maximum.
+     */
+    <K extends Key, V extends Value> AsyncCache<K, V> buildSegment(
+            Function<K, V> producer,
+            Function<Set<K>, Map<K, V>> batchProducer
+    ) {
+        CacheBuilder<Key, Value> segment = copy();
+        segment.maximumWeight = (maximumWeight == UNSET) ? UNSET : (maximumWeight + segments - 1) / segments;
+        segment.segments = 1;
+
+        if (segment.isUnbounded()) {
+            return new BasicCache<K, V>(segment, producer, batchProducer).async();
+        }
+        return new BoundedCache<K, V>(segment, producer, batchProducer).async();
+    }
+
+    /**
+     * Builds the on-heap front of a TieredCache: the same settings, without the off-heap tier.
+     */
+    AsyncCache<Key, Value> buildFront(
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
+        return copy().buildAsync(producer, batchProducer);
+    }
+
+    /**
+     * Returns a copy of every setting but the off-heap tier.
+     */
+    private CacheBuilder<Key, Value> copy() {
+        CacheBuilder<Key, Value> copy = new CacheBuilder<>();
+        copy.maximumWeight = maximumWeight;
+        copy.weigher = weigher;
+        copy.expireAfterWriteNanos = expireAfterWriteNanos;
+        copy.expireAfterAccessNanos = expireAfterAccessNanos;
+        copy.refreshAfterWriteNanos = refreshAfterWriteNanos;
+        copy.ticker = ticker;
+        copy.executor = executor;
+        copy.failurePolicy = failurePolicy;
+        copy.statsCounterSupplier = statsCounterSupplier;
+        copy.segments = segments;
+        return copy;
+    }
+
+    private boolean isUnbounded() {
+        return maximumWeight == UNSET
+                && expireAfterWriteNanos == UNSET
+                && expireAfterAccessNanos == UNSET
+                && refreshAfterWriteNanos == UNSET;
+    }
+
+    private static void requireUnset(long current, String setting) {
+        if (current != UNSET) {
+            throw new IllegalStateException(setting + " was already set");
+        }
+    }
+
+    private static void requireNonNegative(long value, String setting) {
+        if (value < 0) {
+            throw new IllegalArgumentException(setting + " must not be negative: " + value);
+        }
+    }
+
+    private static long toPositiveNanos(long duration, TimeUnit unit, String setting) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException(setting + " must be positive: " + duration + " " + unit);
+        }
+        return unit.toNanos(duration);
+    }
+}
@@ -0,0 +1,308 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Saves a cache's loaded entries to a file, so that after a restart the cache can be warmed from the file instead
+ * of calling the producer for every key again.
+ *
+ * Writing goes through a FileChannel into a temporary file next to the snapshot, which is then moved over the old
+ * snapshot in one atomic step, so a crash mid-write never leaves a half written snapshot behind. Reading is lazy:
+ * the file is memory mapped, and only the keys are decoded (to index where each value starts). A value is decoded
+ * from the mapped bytes the first time its key is asked for, so a restarted node can start serving right away and
+ * only pays for the entries it actually uses.
+ *
+ * To warm a cache, wrap its producer with loadingFrom(), which answers from the snapshot when it can. Each key is
+ * only answered from the snapshot once: after that, a reload (because the entry expired, was refreshed or evicted,
+ * or its load failed) calls the real producer, so the cache doesn't keep getting the same old value back. Once
+ * every key has been served, the mapping is let go.
+ *
+ * <pre>
+ *   CacheSnapshot&lt;Integer, BigInteger&gt; snapshot =
+ *           new CacheSnapshot&lt;&gt;(path, Codec.integers(), Codec.bigIntegers());
+ *   Cache&lt;Integer, BigInteger&gt; cache = CacheBuilder.&lt;Integer, BigInteger&gt;newBuilder()
+ *           .maximumSize(10_000)
+ *           .build(snapshot.loadingFrom(this::compute));
+ *   snapshot.scheduleWrites(cache, scheduler, 1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * The file is a header (magic number, version, entry count) followed by each entry as
+ * [key length][key bytes][value length][value bytes], with big-endian ints for the lengths. A mapped file can't be
+ * larger than 2GB, so a write that would go past that fails (keeping the previous snapshot), and a larger file is
+ * treated as unreadable.
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public class CacheSnapshot<Key, Value> {
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x43534e50;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+    private static final int COUNT_POSITION = 2 * Integer.BYTES;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    private final Path file;
+    private final Codec<Key> keyCodec;
+    private final Codec<Value> valueCodec;
+
+    // read lazily, the first time a key is looked up
+    private volatile MappedSnapshot<Key> mapped;
+
+    public CacheSnapshot(Path file, Codec<Key> keyCodec, Codec<Value> valueCodec) {
+        this.file = file;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Returns a producer that returns the snapshot's value for a key the first time it's asked for, if the
+     * snapshot has one, and otherwise calls the given producer.
+     */
+    public Function<Key, Value> loadingFrom(Function<Key, Value> producer) {
+        return key -> {
+            Value value = take(key);
+            return (value != null) ? value : producer.apply(key);
+        };
+    }
+
+    /**
+     * Returns the value saved for the key in the snapshot that was on disk when it was first read, or null if
+     * there isn't one, or if loadingFrom() has already served it.
+     */
+    public Value read(Key key) {
+        MappedSnapshot<Key> snapshot = mapped();
+        Integer position = snapshot.positions.get(key);
+        return (position == null) ? null : decode(snapshot, position);
+    }
+
+    /**
+     * Like read(), but takes the key out of the snapshot, so it's never served again.
+     */
+    private Value take(Key key) {
+        MappedSnapshot<Key> snapshot = mapped();
+        Integer position = snapshot.positions.remove(key);
+        if (position == null) {
+            return null;
+        }
+        if (snapshot.positions.isEmpty()) {
+            // the warm up is done, so let go of the mapping; a thread still decoding from it keeps it reachable
+            mapped = MappedSnapshot.empty();
+        }
+        return decode(snapshot, position);
+    }
+
+    private Value decode(MappedSnapshot<Key> snapshot, int position) {
+        // a duplicate has its own position and limit, so threads can decode from the same mapping at once
+        ByteBuffer buffer = snapshot.buffer.duplicate();
+        buffer.position(position);
+        int length = buffer.getInt();
+        buffer.limit(buffer.position() + length);
+        return valueCodec.decode(buffer.slice());
+    }
+
+    /**
+     * Writes all of the cache's loaded entries to the snapshot file, replacing the previous snapshot. The write
+     * isn't atomic with respect to the cache, so entries loaded while it runs may or may not be included.
+     *
+     * @return the number of entries written
+     */
+    public int write(Cache<Key, Value> cache) throws IOException {
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            int count;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                count = writeEntries(cache, channel);
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.debug("Wrote cache snapshot entries={} file={}", count, file);
+            return count;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Writes the cache to the snapshot every period, until the returned future is cancelled. A failed write is
+     * logged, and the next one is tried on schedule.
+     */
+    public ScheduledFuture<?> scheduleWrites(
+            Cache<Key, Value> cache,
+            ScheduledExecutorService scheduler,
+            long period,
+            TimeUnit unit
+    ) {
+        return scheduler.scheduleAtFixedRate(() -> {
+            try {
+                write(cache);
+            } catch (IOException | RuntimeException ex) {
+                log.warn("Failed to write cache snapshot file={}", file, ex);
+            }
+        }, period, period, unit);
+    }
+
+    private int writeEntries(Cache<Key, Value> cache, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(0);
+
+        int[] count = {0};
+        long[] size = {HEADER_BYTES};
+        IOException[] failure = {null};
+        cache.forEachLoaded((key, value) -> {
+            if (failure[0] != null) {
+                return;
+            }
+            try {
+                byte[] keyBytes = keyCodec.encode(key);
+                byte[] valueBytes = valueCodec.encode(value);
+                size[0] += 2 * Integer.BYTES + keyBytes.length + valueBytes.length;
+                if (size[0] > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot would be larger than a file can be mapped (2GB)");
+                }
+                writeBytes(keyBytes, buffer, channel);
+                writeBytes(valueBytes, buffer, channel);
+                count[0]++;
+            } catch (IOException ex) {
+                failure[0] = ex;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        flush(buffer, channel);
+
+        // the count is only known at the end, so it's filled in last
+        ByteBuffer countBytes = ByteBuffer.allocate(Integer.BYTES).putInt(count[0]);
+        countBytes.flip();
+        channel.write(countBytes, COUNT_POSITION);
+        return count[0];
+    }
+
+    private static void writeBytes(byte[] bytes, ByteBuffer buffer, FileChannel channel) throws IOException {
+        if (buffer.remaining() < Integer.BYTES + bytes.length) {
+            flush(buffer, channel);
+        }
+        buffer.putInt(bytes.length);
+        if (bytes.length <= buffer.remaining()) {
+            buffer.put(bytes);
+        } else {
+            // too big for the buffer, so it's written straight from the array
+            flush(buffer, channel);
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private MappedSnapshot<Key> mapped() {
+        MappedSnapshot<Key> snapshot = mapped;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = mapped;
+                if (snapshot == null) {
+                    snapshot = map();
+                    mapped = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private MappedSnapshot<Key> map() {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                // map() would throw an IllegalArgumentException; this writer never makes a file that big
+                log.warn("Cache snapshot is too large to map, starting cold size={} file={}", size, file);
+                return MappedSnapshot.empty();
+            }
+            // the mapping stays valid after the channel is closed, and even after a newer snapshot replaces the file
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException ex) {
+            log.info("No cache snapshot to warm from file={}", file);
+            return MappedSnapshot.empty();
+        } catch (IOException ex) {
+            log.warn("Failed to read cache snapshot, starting cold file={}", file, ex);
+            return MappedSnapshot.empty();
+        }
+
+        try {
+            return index(buffer);
+        } catch (RuntimeException ex) {
+            log.warn("Cache snapshot is corrupt, starting cold file={}", file, ex);
+            return MappedSnapshot.empty();
+        }
+    }
+
+    private MappedSnapshot<Key> index(MappedByteBuffer buffer) {
+        ByteBuffer reader = buffer.duplicate();
+        if (reader.remaining() < HEADER_BYTES || reader.getInt() != MAGIC || reader.getInt() != VERSION) {
+            throw new IllegalStateException("not a cache snapshot");
+        }
+        int count = reader.getInt();
+
+        Map<Key, Integer> positions = new ConcurrentHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int keyLength = reader.getInt();
+            ByteBuffer keyBytes = reader.slice();
+            keyBytes.limit(keyLength);
+            Key key = keyCodec.decode(keyBytes);
+            reader.position(reader.position() + keyLength);
+
+            // only the position is kept; the value is decoded when it's asked for
+            positions.put(key, reader.position());
+            int valueLength = reader.getInt();
+            reader.position(reader.position() + valueLength);
+        }
+        log.info("Mapped cache snapshot entries={} file={}", positions.size(), file);
+        return new MappedSnapshot<>(buffer, positions);
+    }
+
+    /**
+     * A mapped snapshot file, and where each key's value starts in it. Keys are only ever removed, as
+     * loadingFrom() serves them.
+     */
+    private static final class MappedSnapshot<Key> {
+        final ByteBuffer buffer;
+        final Map<Key, Integer> positions;
+
+        MappedSnapshot(ByteBuffer buffer, Map<Key, Integer> positions) {
+            this.buffer = buffer;
+            this.positions = positions;
+        }
+
+        static <Key> MappedSnapshot<Key> empty() {
+            return new MappedSnapshot<>(ByteBuffer.allocate(0), Collections.emptyMap());
+        }
+    }
+}
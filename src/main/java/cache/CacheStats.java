@@ -0,0 +1,137 @@
+package cache;
+
+/**
+ * An immutable snapshot of a cache's statistics.
+ *
+ * A hit is a lookup that found the key already cached (or already being loaded by someone else); a miss is a
+ * lookup that had to start a load. A batch load counts as one load, no matter how many keys it covers. Evictions
+ * include entries removed because they expired.
+ */
+public final class CacheStats {
+    private static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long evictionCount;
+    private final long inFlightLoads;
+
+    public CacheStats(
+            long hitCount,
+            long missCount,
+            long loadSuccessCount,
+            long loadFailureCount,
+            long totalLoadTimeNanos,
+            long evictionCount,
+            long inFlightLoads
+    ) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.evictionCount = evictionCount;
+        this.inFlightLoads = inFlightLoads;
+    }
+
+    public static CacheStats empty() {
+        return EMPTY;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Returns the fraction of requests that were hits, or 1.0 if there have been no requests.
+     */
+    public double hitRate() {
+        long requestCount = requestCount();
+        return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public long totalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    /**
+     * Returns the average time spent running the producer, in nanoseconds.
+     */
+    public double averageLoadPenaltyNanos() {
+        long loadCount = loadSuccessCount + loadFailureCount;
+        return (loadCount == 0) ? 0.0 : (double) totalLoadTimeNanos / loadCount;
+    }
+
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of loads that were running when the snapshot was taken. Unlike the other values, this
+     * is a gauge rather than a running total.
+     */
+    public long inFlightLoads() {
+        return inFlightLoads;
+    }
+
+    /**
+     * Returns the sum of these statistics and the given ones, e.g. to total up the shards of a cache.
+     */
+    public CacheStats plus(CacheStats other) {
+        return new CacheStats(
+                hitCount + other.hitCount,
+                missCount + other.missCount,
+                loadSuccessCount + other.loadSuccessCount,
+                loadFailureCount + other.loadFailureCount,
+                totalLoadTimeNanos + other.totalLoadTimeNanos,
+                evictionCount + other.evictionCount,
+                inFlightLoads + other.inFlightLoads);
+    }
+
+    /**
+     * Returns the difference between these statistics and an earlier snapshot, i.e. the activity in between.
+     * The in-flight gauge is taken from this snapshot as it is.
+     */
+    public CacheStats minus(CacheStats earlier) {
+        return new CacheStats(
+                Math.max(0, hitCount - earlier.hitCount),
+                Math.max(0, missCount - earlier.missCount),
+                Math.max(0, loadSuccessCount - earlier.loadSuccessCount),
+                Math.max(0, loadFailureCount - earlier.loadFailureCount),
+                Math.max(0, totalLoadTimeNanos - earlier.totalLoadTimeNanos),
+                Math.max(0, evictionCount - earlier.evictionCount),
+                inFlightLoads);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{"
+                + "hitCount=" + hitCount
+                + ", missCount=" + missCount
+                + ", hitRate=" + hitRate()
+                + ", loadSuccessCount=" + loadSuccessCount
+                + ", loadFailureCount=" + loadFailureCount
+                + ", averageLoadPenaltyNanos=" + averageLoadPenaltyNanos()
+                + ", evictionCount=" + evictionCount
+                + ", inFlightLoads=" + inFlightLoads
+                + '}';
+    }
+}
@@ -0,0 +1,99 @@
+package cache;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns keys or values into bytes and back, so a CacheSnapshot can store them in a file, or an OffHeapStore in
+ * direct memory.
+ *
+ * @param <T> the type being encoded
+ */
+public interface Codec<T> {
+
+    byte[] encode(T value);
+
+    /**
+     * Decodes a value from the buffer's remaining bytes. The buffer may be a view of a memory mapped file, so the
+     * codec must not hold on to it.
+     */
+    T decode(ByteBuffer buffer);
+
+    static Codec<Integer> integers() {
+        return Codecs.INTEGERS;
+    }
+
+    static Codec<Long> longs() {
+        return Codecs.LONGS;
+    }
+
+    static Codec<String> strings() {
+        return Codecs.STRINGS;
+    }
+
+    /**
+     * Encodes a BigInteger as its two's complement bytes, which is about as compact as it gets.
+     */
+    static Codec<BigInteger> bigIntegers() {
+        return Codecs.BIG_INTEGERS;
+    }
+}
+
+/**
+ * The built in codecs.
+ */
+final class Codecs {
+    static final Codec<Integer> INTEGERS = new Codec<Integer>() {
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    static final Codec<Long> LONGS = new Codec<Long>() {
+        @Override
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    static final Codec<String> STRINGS = new Codec<String>() {
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+    };
+
+    static final Codec<BigInteger> BIG_INTEGERS = new Codec<BigInteger>() {
+        @Override
+        public byte[] encode(BigInteger value) {
+            return value.toByteArray();
+        }
+
+        @Override
+        public BigInteger decode(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new BigInteger(bytes);
+        }
+    };
+
+    private Codecs() {
+    }
+}
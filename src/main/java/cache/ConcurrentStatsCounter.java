@@ -0,0 +1,71 @@
+package cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A StatsCounter that keeps running totals in memory.
+ *
+ * Every counter is a LongAdder rather than an AtomicLong. An AtomicLong is a single memory location, so when many
+ * threads count cache hits at once they all fight over one cache line and the counting costs more than the hit.
+ * A LongAdder spreads contended updates over several cells and only adds them up when read, which is the right
+ * trade-off here: we record on every lookup, but only read when someone asks for a snapshot.
+ */
+public class ConcurrentStatsCounter implements StatsCounter {
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder inFlightLoads = new LongAdder();
+
+    @Override
+    public void recordHits(int count) {
+        hitCount.add(count);
+    }
+
+    @Override
+    public void recordMisses(int count) {
+        missCount.add(count);
+    }
+
+    @Override
+    public void recordLoadStarted() {
+        inFlightLoads.increment();
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTimeNanos) {
+        loadSuccessCount.increment();
+        totalLoadTime.add(loadTimeNanos);
+        inFlightLoads.decrement();
+    }
+
+    @Override
+    public void recordLoadFailure(long loadTimeNanos) {
+        loadFailureCount.increment();
+        totalLoadTime.add(loadTimeNanos);
+        inFlightLoads.decrement();
+    }
+
+    @Override
+    public void recordEviction() {
+        evictionCount.increment();
+    }
+
+    /**
+     * Returns the current totals. The counters are read one at a time while other threads may be updating them,
+     * so the snapshot isn't an atomic point-in-time view, but each value is accurate on its own.
+     */
+    @Override
+    public CacheStats snapshot() {
+        return new CacheStats(
+                hitCount.sum(),
+                missCount.sum(),
+                loadSuccessCount.sum(),
+                loadFailureCount.sum(),
+                totalLoadTime.sum(),
+                evictionCount.sum(),
+                Math.max(0, inFlightLoads.sum()));
+    }
+}
@@ -0,0 +1,73 @@
+package cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what a cache does with a key whose producer failed.
+ *
+ *   - retain(): the failed future stays cached, so every later call rethrows the same error and the key is never
+ *     retried. This is the default, because it is what BasicCache has always done.
+ *   - evict(): the failed future is removed as soon as it completes, so the next call retries. Callers that were
+ *     already waiting on the load still see the error.
+ *   - negativeCache(): the failure is cached for a short time and then retried, and a producer that returns null
+ *     ("not found") is treated the same way. Each consecutive failure doubles the time before the next retry, up
+ *     to a maximum, so a backend that is down doesn't get hammered by a retry storm; one success resets it.
+ */
+public final class FailurePolicy {
+
+    enum Mode {
+        RETAIN, EVICT, NEGATIVE_CACHE
+    }
+
+    private static final FailurePolicy RETAIN = new FailurePolicy(Mode.RETAIN, 0, 0);
+    private static final FailurePolicy EVICT = new FailurePolicy(Mode.EVICT, 0, 0);
+
+    final Mode mode;
+    private final long initialDelayNanos;
+    private final long maximumDelayNanos;
+
+    private FailurePolicy(Mode mode, long initialDelayNanos, long maximumDelayNanos) {
+        this.mode = mode;
+        this.initialDelayNanos = initialDelayNanos;
+        this.maximumDelayNanos = maximumDelayNanos;
+    }
+
+    public static FailurePolicy retain() {
+        return RETAIN;
+    }
+
+    public static FailurePolicy evict() {
+        return EVICT;
+    }
+
+    /**
+     * @param initialDelay how long the first failure (or null result) is cached before the key is retried
+     * @param maximumDelay the cap on the delay, which doubles with each consecutive failure
+     */
+    public static FailurePolicy negativeCache(long initialDelay, long maximumDelay, TimeUnit unit) {
+        if (initialDelay <= 0 || maximumDelay < initialDelay) {
+            throw new IllegalArgumentException(
+                    "Need 0 < initialDelay <= maximumDelay: initialDelay=" + initialDelay + " maximumDelay=" + maximumDelay);
+        }
+        return new FailurePolicy(Mode.NEGATIVE_CACHE, unit.toNanos(initialDelay), unit.toNanos(maximumDelay));
+    }
+
+    /**
+     * Returns true if the outcome of a load should be treated as a failure under this policy.
+     */
+    boolean isFailure(Object value, Throwable error) {
+        return error != null || (mode == Mode.NEGATIVE_CACHE && value == null);
+    }
+
+    /**
+     * Returns how long to wait before retrying a key that has failed the given number of times in a row.
+     */
+    long retryDelayNanos(int consecutiveFailures) {
+        int doublings = Math.min(consecutiveFailures - 1, 62);
+        long delay = initialDelayNanos << doublings;
+        if (delay <= 0 || delay > maximumDelayNanos || (delay >> doublings) != initialDelayNanos) {
+            return maximumDelayNanos;
+        }
+        return delay;
+    }
+}
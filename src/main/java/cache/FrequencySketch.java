@@ -0,0 +1,120 @@
+package cache;
+
+/**
+ * A probabilistic estimate of how often each key has been accessed recently; this is the "TinyLFU" part of
+ * W-TinyLFU. It is a count-min sketch with four 4-bit counters per key, packed into a long[] so the whole
+ * thing costs roughly 8 bytes per cache entry no matter how large the keys are.
+ *
+ * To keep the history "recent", the counters are all halved once the number of increments reaches a sample
+ * size proportional to the cache size (the aging/reset step from the TinyLFU paper). That way a key that was
+ * popular an hour ago can't squat on the cache forever.
+ *
+ * This class is NOT thread safe; the cache only touches it while holding its eviction lock.
+ *
+ * @param <E> the type of key being counted
+ */
+final class FrequencySketch<E> {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private long[] table = new long[0];
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Grows the sketch so it can accurately count the given number of distinct keys. Growing throws away the
+     * existing counts, which is fine since it only happens while the cache is warming up.
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize, 8), MAXIMUM_CAPACITY);
+        if (table.length >= maximum) {
+            return;
+        }
+
+        table = new long[ceilingPowerOfTwo(maximum)];
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of the key, up to a maximum of 15.
+     */
+    int frequency(E element) {
+        if (table.length == 0) {
+            return 0;
+        }
+
+        int hash = spread(element.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Increments the popularity of the key, aging all of the counters if the sample size has been reached.
+     */
+    void increment(E element) {
+        if (table.length == 0) {
+            return;
+        }
+
+        int hash = spread(element.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /** Halves every counter; integer division truncates odd counts, so we correct the size for that. */
+    private void reset() {
+        int oddCounters = 0;
+        for (int i = 0; i < table.length; i++) {
+            oddCounters += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (oddCounters >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += (h >>> 32);
+        return ((int) h) & tableMask;
+    }
+
+    /** Applies a supplemental hash, since plenty of hashCode() implementations (e.g. Integer) are poor. */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+}
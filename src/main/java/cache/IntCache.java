@@ -0,0 +1,207 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * A cache keyed by primitive ints, so that looking up a key never boxes it.
+ *
+ * A Cache&lt;Integer, Value&gt; allocates an Integer for almost every key it's asked for (only -128 to 127 are
+ * cached by Integer.valueOf), and then calls hashCode() and equals() on it. This cache stores its keys in a plain
+ * int[] instead, with open addressing (linear probing), so a hit is a few array reads and allocates nothing.
+ *
+ * Reads never lock. Each slot's key is written before its value, and the value is published with a volatile
+ * write to an AtomicReferenceArray; a reader that sees the value is therefore guaranteed to see the key too. Slots
+ * are never cleared, so a reader that reaches an empty slot knows the key isn't in the table. Inserts and resizes
+ * take a lock, and a resize publishes a brand new table, so a reader still probing the old one just sees it as it
+ * was. If the key isn't found, the reader takes the lock and checks again against the current table.
+ *
+ * Like getUnchecked on the other caches, the producer is only called once per key, no matter how many threads
+ * ask for it at the same time: the first one claims the slot with a future and runs the producer, and the rest
+ * wait on that future. Unlike the other caches, the producer runs on the calling thread, and entries are never
+ * evicted, so this suits a bounded key space (such as Fibonacci inputs up to some limit). A failed load is cached,
+ * as with FailurePolicy.retain().
+ *
+ * @param <Value> The value type the cache will return
+ */
+public class IntCache<Value> {
+    private static final Logger log = LoggerFactory.getLogger(IntCache.class);
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 64;
+    // the largest power of two an array can hold
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private final IntFunction<Value> producer;
+    private final ReentrantLock insertLock = new ReentrantLock();
+    private volatile Table<Value> table;
+
+    // guarded by the insert lock
+    private int size;
+
+    public IntCache(IntFunction<Value> producer) {
+        this(producer, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize roughly how many keys the cache will hold, to avoid resizing while it fills up
+     */
+    public IntCache(IntFunction<Value> producer, int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expectedSize must not be negative: " + expectedSize);
+        }
+        this.producer = producer;
+        // kept at most half full, so probe sequences stay short
+        this.table = new Table<>(tableSizeFor(expectedSize * 2L));
+    }
+
+    public Value get(int key) throws InterruptedException, ExecutionException {
+        CompletableFuture<Value> future = table.find(key);
+        if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+            return future.getNow(null);
+        }
+        if (future == null) {
+            future = claim(key);
+        }
+        return future.get();
+    }
+
+    /**
+     * Returns the value at the given key, calling the producer if it isn't cached yet. A hit allocates nothing.
+     *
+     * @param key the key associated with the cached value
+     * @return the cached value
+     */
+    public Value getUnchecked(int key) {
+        Value value = null;
+        try {
+            value = get(key);
+        } catch (ExecutionException ex) {
+            log.error("Unexpected exception occurred getting cache value key={}", key, ex.getCause());
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            log.error("Interrupted!");
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of keys in the cache, including those still loading.
+     */
+    public int size() {
+        insertLock.lock();
+        try {
+            return size;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the key's future, adding one and running the producer if the key is missing.
+     */
+    private CompletableFuture<Value> claim(int key) {
+        CompletableFuture<Value> created;
+        insertLock.lock();
+        try {
+            CompletableFuture<Value> existing = table.find(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (2 * (size + 1) > table.capacity()) {
+                if (table.capacity() < MAXIMUM_CAPACITY) {
+                    table = table.resized(table.capacity() * 2);
+                } else if (size + 1 >= MAXIMUM_CAPACITY) {
+                    // one slot always stays empty, or a probe for a missing key would never end
+                    throw new IllegalStateException("IntCache is full: " + size + " keys");
+                }
+            }
+            created = new CompletableFuture<>();
+            table.insert(key, created);
+            size++;
+        } finally {
+            insertLock.unlock();
+        }
+
+        // the producer runs outside the lock, so loads of different keys don't wait on each other
+        try {
+            created.complete(producer.apply(key));
+        } catch (RuntimeException | Error error) {
+            created.completeExceptionally(error);
+        }
+        return created;
+    }
+
+    private static int tableSizeFor(long minimum) {
+        long size = Math.max(DEFAULT_INITIAL_CAPACITY, Long.highestOneBit(Math.max(1, minimum - 1)) << 1);
+        if (size > MAXIMUM_CAPACITY) {
+            throw new IllegalArgumentException("too many keys for an IntCache: " + minimum / 2);
+        }
+        return (int) size;
+    }
+
+    /**
+     * The keys and values, in parallel arrays whose length is a power of two. A slot is empty while its value is
+     * null. Only written to under the insert lock.
+     */
+    private static final class Table<Value> {
+        final int[] keys;
+        final AtomicReferenceArray<CompletableFuture<Value>> values;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        CompletableFuture<Value> find(int key) {
+            for (int i = indexFor(key); ; i = (i + 1) & mask) {
+                // the volatile read of the value comes first, which makes the key written before it visible
+                CompletableFuture<Value> value = values.get(i);
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return value;
+                }
+            }
+        }
+
+        void insert(int key, CompletableFuture<Value> value) {
+            int i = indexFor(key);
+            while (values.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values.set(i, value);
+        }
+
+        Table<Value> resized(int capacity) {
+            Table<Value> resized = new Table<>(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                CompletableFuture<Value> value = values.get(i);
+                if (value != null) {
+                    resized.insert(keys[i], value);
+                }
+            }
+            return resized;
+        }
+
+        private int indexFor(int key) {
+            // spreads sequential keys (the common case) so they don't form one long run of occupied slots
+            int hash = key * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors suited to running cache producers, which often block on I/O.
+ */
+public final class LoaderExecutors {
+    private static final Logger log = LoggerFactory.getLogger(LoaderExecutors.class);
+
+    private LoaderExecutors() {
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each load, so a producer blocked on I/O costs
+     * almost nothing and can't starve other work.
+     *
+     * The project compiles for Java 8, so the JDK 21 factory method is looked up reflectively. On older JDKs this
+     * falls back to a cached pool of daemon platform threads, which at least keeps blocking producers off the
+     * common ForkJoinPool.
+     */
+    public static ExecutorService newVirtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            log.info("Virtual threads are not available on this JDK; using a cached thread pool for cache loads");
+            return Executors.newCachedThreadPool(daemonThreadFactory("cache-loader"));
+        }
+    }
+
+    /**
+     * Returns a fixed-size pool of daemon threads, for producers that need their concurrency capped (e.g. to
+     * limit the number of connections to a backend).
+     */
+    public static ExecutorService newFixedPool(int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreadFactory("cache-loader"));
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
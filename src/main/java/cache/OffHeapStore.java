@@ -0,0 +1,225 @@
+package cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores values outside of the Java heap, encoded into a ring of direct ByteBuffer slabs, so that caching
+ * gigabytes of them doesn't give the garbage collector gigabytes more to trace and copy.
+ *
+ * The slabs are written like a log: every value is appended at the head, and the index (an ordinary
+ * ConcurrentHashMap, on the heap) maps its key to the position it was written at. Positions only ever grow, and
+ * position p lives in slab (p / slabSize) % slabCount. When the head needs a slab that's still in use, the oldest
+ * slab is recycled: the tail moves past it, and everything that was in it is evicted at once. That makes eviction
+ * FIFO by write time rather than LRU, which is why this is meant to sit behind an on-heap cache that keeps the hot
+ * entries (see TieredCache); a value that's read from here gets promoted there.
+ *
+ * Appends are serialized by a lock, but reads never wait for them, since a read only touches bytes below the head
+ * that will never be written again... until their slab is recycled. Recycling takes the write side of a
+ * StampedLock, and readers copy their bytes under an optimistic read of it, then validate the stamp. If a
+ * recycle overlapped the copy, the bytes might be half overwritten, so the read counts as a miss.
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public class OffHeapStore<Key, Value> {
+    private static final int DEFAULT_SLAB_BYTES = 8 * 1024 * 1024;
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final Codec<Value> codec;
+    private final ByteBuffer[] slabs;
+    private final int slabBytes;
+    private final ConcurrentHashMap<Key, Long> index = new ConcurrentHashMap<>();
+    private final StampedLock recycleLock = new StampedLock();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // the keys written into each slab, to remove from the index when it's recycled; guarded by the append lock
+    private final List<List<Key>> slabKeys;
+
+    // positions below the tail have been recycled; the tail is only moved under the recycle lock
+    private volatile long tail;
+    // guarded by the append lock
+    private long head;
+
+    public OffHeapStore(long maximumBytes, Codec<Value> codec) {
+        this(maximumBytes, DEFAULT_SLAB_BYTES, codec);
+    }
+
+    /**
+     * @param maximumBytes the most off-heap memory to use, rounded down to a whole number of slabs (at least two)
+     * @param slabBytes the size of each slab; a value larger than this can't be stored
+     */
+    public OffHeapStore(long maximumBytes, int slabBytes, Codec<Value> codec) {
+        if (slabBytes <= LENGTH_BYTES) {
+            throw new IllegalArgumentException("slabBytes is too small: " + slabBytes);
+        }
+        long slabCount = Math.max(2, maximumBytes / slabBytes);
+        if (slabCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many slabs: " + slabCount);
+        }
+
+        this.codec = codec;
+        this.slabBytes = slabBytes;
+        this.slabs = new ByteBuffer[(int) slabCount];
+        this.slabKeys = new ArrayList<>(slabs.length);
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = ByteBuffer.allocateDirect(slabBytes);
+            slabKeys.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Returns the value stored for the key, or null if there isn't one (or it has been evicted).
+     */
+    public Value get(Key key) {
+        Long position = index.get(key);
+        if (position == null) {
+            misses.increment();
+            return null;
+        }
+
+        byte[] bytes = read(position);
+        if (bytes == null) {
+            // evicted since we looked it up
+            index.remove(key, position);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return codec.decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Stores the value for the key, replacing any earlier value. If the encoded value is bigger than a slab, it
+     * isn't stored, and false is returned.
+     */
+    public boolean put(Key key, Value value) {
+        byte[] bytes = codec.encode(value);
+        int length = LENGTH_BYTES + bytes.length;
+        if (length > slabBytes) {
+            return false;
+        }
+
+        appendLock.lock();
+        try {
+            long position = head;
+            if (offsetOf(position) + length > slabBytes) {
+                // doesn't fit in what's left of this slab, so it goes at the start of the next one
+                position += slabBytes - offsetOf(position);
+            }
+            if (slabNumberOf(position) != slabNumberOf(head) || offsetOf(head) == 0) {
+                makeRoomFor(position);
+            }
+
+            ByteBuffer slab = slabs[slabIndexOf(position)].duplicate();
+            slab.position(offsetOf(position));
+            slab.putInt(bytes.length);
+            slab.put(bytes);
+            slabKeys.get(slabIndexOf(position)).add(key);
+            head = position + length;
+
+            // published after the bytes are written, so a reader that finds the position can read them
+            index.put(key, position);
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Calls the action for every value still stored, decoding each one.
+     */
+    public void forEach(BiConsumer<? super Key, ? super Value> action) {
+        index.forEach((key, position) -> {
+            byte[] bytes = read(position);
+            if (bytes != null) {
+                action.accept(key, codec.decode(ByteBuffer.wrap(bytes)));
+            }
+        });
+    }
+
+    /**
+     * Returns the number of keys with a stored value (roughly; recently evicted keys may still be counted).
+     */
+    public long size() {
+        return index.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns how much off-heap memory the slabs take, which is all allocated up front.
+     */
+    public long capacityBytes() {
+        return (long) slabs.length * slabBytes;
+    }
+
+    /**
+     * Recycles the oldest slab if the slab at position is still in use.
+     */
+    private void makeRoomFor(long position) {
+        long slabStart = position - offsetOf(position);
+        long newTail = slabStart - (long) (slabs.length - 1) * slabBytes;
+        if (newTail <= tail) {
+            return;
+        }
+
+        long stamp = recycleLock.writeLock();
+        try {
+            tail = newTail;
+        } finally {
+            recycleLock.unlockWrite(stamp);
+        }
+
+        List<Key> keys = slabKeys.get(slabIndexOf(position));
+        for (Key key : keys) {
+            index.computeIfPresent(key, (k, existing) -> existing < newTail ? null : existing);
+        }
+        keys.clear();
+    }
+
+    private byte[] read(long position) {
+        long stamp = recycleLock.tryOptimisticRead();
+        if (stamp == 0 || position < tail) {
+            return null;
+        }
+
+        ByteBuffer slab = slabs[slabIndexOf(position)].duplicate();
+        slab.position(offsetOf(position));
+        int length = slab.getInt();
+        if (length < 0 || length > slab.remaining()) {
+            // the bytes are already being overwritten; validate() below would fail too
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        slab.get(bytes);
+
+        return recycleLock.validate(stamp) ? bytes : null;
+    }
+
+    private long slabNumberOf(long position) {
+        return position / slabBytes;
+    }
+
+    private int slabIndexOf(long position) {
+        return (int) (slabNumberOf(position) % slabs.length);
+    }
+
+    private int offsetOf(long position) {
+        return (int) (position % slabBytes);
+    }
+}
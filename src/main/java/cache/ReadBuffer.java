@@ -0,0 +1,91 @@
+package cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A lossy, striped buffer for recording reads, so that a cache hit never has to take the eviction lock.
+ *
+ * Each reading thread hashes to one of several small ring buffers and claims a slot with a single CAS. If the
+ * CAS loses a race, or the ring is full, the read is simply dropped -- the eviction policy only needs a
+ * statistically good picture of what is popular, not a perfect one. When a ring fills up, the caller is told
+ * a drain is due, and whichever thread manages to tryLock() the eviction lock replays the buffered reads
+ * against the policy. This is the same trick Caffeine uses, borrowed from database buffer pools.
+ *
+ * Offering is thread safe; draining must only be done while holding the cache's eviction lock.
+ *
+ * @param <E> the type of element being buffered
+ */
+final class ReadBuffer<E> {
+    private static final int RING_SIZE = 16;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private final Ring<E>[] rings;
+    private final int ringMask;
+
+    ReadBuffer() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        @SuppressWarnings("unchecked")
+        Ring<E>[] rings = (Ring<E>[]) new Ring<?>[stripes];
+        this.rings = rings;
+        for (int i = 0; i < stripes; i++) {
+            rings[i] = new Ring<>();
+        }
+        this.ringMask = stripes - 1;
+    }
+
+    /**
+     * Records the element, possibly dropping it.
+     *
+     * @return true if the thread's ring is full and should be drained
+     */
+    boolean offer(E element) {
+        long id = Thread.currentThread().getId();
+        int index = (int) (id ^ (id >>> 16)) & ringMask;
+        return rings[index].offer(element);
+    }
+
+    /**
+     * Replays every buffered element into the consumer. Must be called while holding the eviction lock.
+     */
+    void drainTo(Consumer<E> consumer) {
+        for (Ring<E> ring : rings) {
+            ring.drainTo(consumer);
+        }
+    }
+
+    private static final class Ring<E> {
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(RING_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        boolean offer(E element) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= RING_SIZE) {
+                return true;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & RING_MASK), element);
+            }
+            return false;
+        }
+
+        void drainTo(Consumer<E> consumer) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head != tail; head++) {
+                int index = (int) (head & RING_MASK);
+                E element = buffer.get(index);
+                if (element == null) {
+                    // the writer claimed the slot but hasn't published the element yet; pick it up next time
+                    break;
+                }
+                buffer.lazySet(index, null);
+                consumer.accept(element);
+            }
+            readCounter = head;
+        }
+    }
+}
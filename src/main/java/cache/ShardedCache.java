@@ -0,0 +1,172 @@
+package cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A cache split into independent segments, each a complete cache of its own, with keys spread across them by
+ * hash. Create one with CacheBuilder.segments().
+ *
+ * A single BasicCache or BoundedCache funnels every thread through one ConcurrentHashMap, and a BoundedCache
+ * also through one eviction lock, read buffer and set of statistics counters. On a machine with dozens of cores,
+ * a few hot keys are enough to make those the bottleneck. Here each segment has its own map, eviction policy and
+ * stats, so threads working on keys in different segments never touch the same memory. The cost is that the
+ * bound is per segment (the maximum size is divided evenly between them), so the eviction decisions are a little
+ * less accurate than one cache of the full size would make.
+ *
+ * Hits also skip CompletableFuture.get(): once a value has loaded, it's read straight out of the completed future
+ * instead of going through the blocking path.
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public class ShardedCache<Key, Value> implements Cache<Key, Value> {
+    private static final Logger log = LoggerFactory.getLogger(ShardedCache.class);
+
+    private final List<AsyncCache<Key, Value>> segments;
+    private final int segmentShift;
+
+    ShardedCache(
+            CacheBuilder<? super Key, ? super Value> builder,
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
+        int segmentCount = builder.segments;
+        this.segments = new ArrayList<>(segmentCount);
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(builder.buildSegment(producer, batchProducer));
+        }
+    }
+
+    @Override
+    public Value get(Key key) throws InterruptedException, ExecutionException {
+        CompletableFuture<Value> future = segmentFor(key).get(key);
+        if (future.isDone() && !future.isCompletedExceptionally()) {
+            // the common case for a hit; no need to go through get() to read a value that's already there
+            return future.getNow(null);
+        }
+        return future.get();
+    }
+
+    /**
+     * Returns the value at the given key, loading it if needed. Like the other caches, the producer is only
+     * called once per key while it's cached, no matter how many threads ask for it at the same time.
+     */
+    @Override
+    public Value getUnchecked(Key key) {
+        Value value = null;
+        try {
+            value = get(key);
+        } catch (ExecutionException ex) {
+            log.error("Unexpected exception occurred getting cache value key={}", key, ex.getCause());
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            log.error("Interrupted!");
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values for all of the given keys. The keys are grouped by segment, and each segment loads its
+     * missing keys together, so a batch producer is called (at most) once per segment rather than once overall.
+     */
+    @Override
+    public Map<Key, Value> getAll(Iterable<? extends Key> keys) throws InterruptedException, ExecutionException {
+        return BatchLoader.join(getAllFutures(keys));
+    }
+
+    /**
+     * Returns the statistics of all of the segments added together.
+     */
+    @Override
+    public CacheStats stats() {
+        CacheStats total = CacheStats.empty();
+        for (AsyncCache<Key, Value> segment : segments) {
+            total = total.plus(segment.synchronous().stats());
+        }
+        return total;
+    }
+
+    /**
+     * Returns each segment's statistics, which shows if some segments are much busier than others.
+     */
+    public List<CacheStats> segmentStats() {
+        List<CacheStats> stats = new ArrayList<>(segments.size());
+        for (AsyncCache<Key, Value> segment : segments) {
+            stats.add(segment.synchronous().stats());
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    @Override
+    public void forEachLoaded(BiConsumer<? super Key, ? super Value> action) {
+        for (AsyncCache<Key, Value> segment : segments) {
+            segment.synchronous().forEachLoaded(action);
+        }
+    }
+
+    /**
+     * Returns a view of this cache that hands back futures instead of blocking.
+     */
+    public AsyncCache<Key, Value> async() {
+        return new AsyncView();
+    }
+
+    private AsyncCache<Key, Value> segmentFor(Key key) {
+        if (segmentShift == 32) {
+            return segments.get(0);
+        }
+        // the segment maps use the low bits of the hash, so the segment is picked by the high bits of a mix of it
+        int hash = key.hashCode() * 0x9E3779B9;
+        return segments.get(hash >>> segmentShift);
+    }
+
+    private Map<Key, CompletableFuture<Value>> getAllFutures(Iterable<? extends Key> keys) {
+        Map<AsyncCache<Key, Value>, List<Key>> keysBySegment = new LinkedHashMap<>();
+        Map<Key, AsyncCache<Key, Value>> segmentByKey = new LinkedHashMap<>();
+        for (Key key : keys) {
+            AsyncCache<Key, Value> segment = segmentFor(key);
+            if (segmentByKey.put(key, segment) == null) {
+                keysBySegment.computeIfAbsent(segment, ignored -> new ArrayList<>()).add(key);
+            }
+        }
+
+        Map<AsyncCache<Key, Value>, CompletableFuture<Map<Key, Value>>> results = new LinkedHashMap<>();
+        keysBySegment.forEach((segment, segmentKeys) -> results.put(segment, segment.getAll(segmentKeys)));
+
+        Map<Key, CompletableFuture<Value>> futures = new LinkedHashMap<>();
+        segmentByKey.forEach((key, segment) -> futures.put(key, results.get(segment).thenApply(values -> values.get(key))));
+        return futures;
+    }
+
+    private class AsyncView implements AsyncCache<Key, Value> {
+
+        @Override
+        public CompletableFuture<Value> get(Key key) {
+            return segmentFor(key).get(key);
+        }
+
+        @Override
+        public CompletableFuture<Map<Key, Value>> getAll(Iterable<? extends Key> keys) {
+            return BatchLoader.combine(getAllFutures(keys));
+        }
+
+        @Override
+        public Cache<Key, Value> synchronous() {
+            return ShardedCache.this;
+        }
+    }
+}
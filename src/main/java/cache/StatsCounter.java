@@ -0,0 +1,69 @@
+package cache;
+
+/**
+ * Receives the events a cache records about itself. Implement this to send cache metrics somewhere else (e.g. a
+ * metrics registry), or use ConcurrentStatsCounter to just keep the totals in memory.
+ *
+ * The record methods are called on the cache's hot path, often by many threads at once, so implementations
+ * must be thread safe and should avoid locking or allocating.
+ */
+public interface StatsCounter {
+
+    void recordHits(int count);
+
+    void recordMisses(int count);
+
+    /**
+     * Records that a load (or batch load) has started. It is always followed by exactly one call to
+     * recordLoadSuccess or recordLoadFailure.
+     */
+    void recordLoadStarted();
+
+    void recordLoadSuccess(long loadTimeNanos);
+
+    void recordLoadFailure(long loadTimeNanos);
+
+    void recordEviction();
+
+    CacheStats snapshot();
+
+    /**
+     * Returns a counter that ignores everything, for caches that don't record statistics.
+     */
+    static StatsCounter disabled() {
+        return DisabledStatsCounter.INSTANCE;
+    }
+}
+
+enum DisabledStatsCounter implements StatsCounter {
+    INSTANCE;
+
+    @Override
+    public void recordHits(int count) {
+    }
+
+    @Override
+    public void recordMisses(int count) {
+    }
+
+    @Override
+    public void recordLoadStarted() {
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTimeNanos) {
+    }
+
+    @Override
+    public void recordLoadFailure(long loadTimeNanos) {
+    }
+
+    @Override
+    public void recordEviction() {
+    }
+
+    @Override
+    public CacheStats snapshot() {
+        return CacheStats.empty();
+    }
+}
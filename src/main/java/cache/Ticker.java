@@ -0,0 +1,18 @@
+package cache;
+
+/**
+ * A source of nanosecond time, used by the cache to decide when entries expire or are due for a refresh. Tests
+ * can supply their own ticker to move time forward without sleeping.
+ */
+@FunctionalInterface
+public interface Ticker {
+
+    /**
+     * Returns the number of nanoseconds elapsed since some fixed but arbitrary point in time.
+     */
+    long read();
+
+    static Ticker systemTicker() {
+        return System::nanoTime;
+    }
+}
@@ -0,0 +1,166 @@
+package cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A cache in two tiers: a small on-heap cache in front, for the hot entries, and a much bigger OffHeapStore
+ * behind it, for everything else. Create one with CacheBuilder.offHeap().
+ *
+ * The front cache is built from the rest of the builder's settings, and must be given a maximum size or weight of
+ * its own: every value is kept off-heap anyway, so an unbounded front would only hold a second copy of all of them.
+ * Its producer is wrapped: on a miss it first looks in the off-heap store, and only calls the real producer if the
+ * value isn't there either, writing what it produces through to the store. So every value ends up off-heap, and an
+ * entry that falls out of the front is still a cheap decode away rather than a full reload. An off-heap hit is
+ * loaded into the front again, which is how hot entries get promoted back on-heap.
+ *
+ * Since the off-heap tier doesn't expire anything, expireAfterWrite and refreshAfterWrite can't be used with it;
+ * expireAfterAccess only takes idle entries out of the front.
+ *
+ * The GC only ever sees the front cache and the off-heap index (one key and one Long per entry), no matter how big
+ * the values are, which keeps pause times down when the values are large BigIntegers or the like.
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+public class TieredCache<Key, Value> implements Cache<Key, Value> {
+    private final OffHeapStore<Key, Value> offHeap;
+    private final AsyncCache<Key, Value> front;
+
+    TieredCache(
+            CacheBuilder<Key, Value> builder,
+            Function<Key, Value> producer,
+            Function<Set<Key>, Map<Key, Value>> batchProducer
+    ) {
+        if (builder.expireAfterWriteNanos != CacheBuilder.UNSET || builder.refreshAfterWriteNanos != CacheBuilder.UNSET) {
+            // a reload would just be answered with the same old value from the off-heap tier
+            throw new IllegalStateException("offHeap can't be combined with expireAfterWrite or refreshAfterWrite");
+        }
+        if (builder.maximumWeight == CacheBuilder.UNSET) {
+            throw new IllegalStateException("offHeap requires a maximumSize or maximumWeight for the on-heap front");
+        }
+        this.offHeap = new OffHeapStore<>(builder.offHeapBytes, builder.offHeapCodec);
+        this.front = builder.buildFront(
+                loadingThrough(producer),
+                (batchProducer == null) ? null : loadingAllThrough(batchProducer)
+        );
+    }
+
+    @Override
+    public Value get(Key key) throws InterruptedException, ExecutionException {
+        return front.synchronous().get(key);
+    }
+
+    @Override
+    public Value getUnchecked(Key key) {
+        return front.synchronous().getUnchecked(key);
+    }
+
+    @Override
+    public Map<Key, Value> getAll(Iterable<? extends Key> keys) throws InterruptedException, ExecutionException {
+        return front.synchronous().getAll(keys);
+    }
+
+    /**
+     * Returns the front cache's statistics. A front miss that's answered off-heap still counts as a miss (and a
+     * load) here; see offHeap() for how often that happens.
+     */
+    @Override
+    public CacheStats stats() {
+        return front.synchronous().stats();
+    }
+
+    /**
+     * Calls the action for the entries in the front cache, then for those only held off-heap.
+     */
+    @Override
+    public void forEachLoaded(BiConsumer<? super Key, ? super Value> action) {
+        Set<Key> seen = new HashSet<>();
+        front.synchronous().forEachLoaded((key, value) -> {
+            seen.add(key);
+            action.accept(key, value);
+        });
+        offHeap.forEach((key, value) -> {
+            if (!seen.contains(key)) {
+                action.accept(key, value);
+            }
+        });
+    }
+
+    /**
+     * Returns the off-heap tier, e.g. to read its hit and miss counts.
+     */
+    public OffHeapStore<Key, Value> offHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Returns a view of this cache that hands back futures instead of blocking.
+     */
+    public AsyncCache<Key, Value> async() {
+        return new AsyncView();
+    }
+
+    private Function<Key, Value> loadingThrough(Function<Key, Value> producer) {
+        return key -> {
+            Value value = offHeap.get(key);
+            if (value == null) {
+                value = producer.apply(key);
+                if (value != null) {
+                    offHeap.put(key, value);
+                }
+            }
+            return value;
+        };
+    }
+
+    private Function<Set<Key>, Map<Key, Value>> loadingAllThrough(Function<Set<Key>, Map<Key, Value>> batchProducer) {
+        return keys -> {
+            Map<Key, Value> values = new HashMap<>();
+            Set<Key> missing = new LinkedHashSet<>();
+            for (Key key : keys) {
+                Value value = offHeap.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                } else {
+                    missing.add(key);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<Key, Value> produced = batchProducer.apply(missing);
+                produced.forEach((key, value) -> {
+                    if (value != null) {
+                        offHeap.put(key, value);
+                    }
+                });
+                values.putAll(produced);
+            }
+            return values;
+        };
+    }
+
+    private class AsyncView implements AsyncCache<Key, Value> {
+
+        @Override
+        public CompletableFuture<Value> get(Key key) {
+            return front.get(key);
+        }
+
+        @Override
+        public CompletableFuture<Map<Key, Value>> getAll(Iterable<? extends Key> keys) {
+            return front.getAll(keys);
+        }
+
+        @Override
+        public Cache<Key, Value> synchronous() {
+            return TieredCache.this;
+        }
+    }
+}
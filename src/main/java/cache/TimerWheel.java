@@ -0,0 +1,104 @@
+package cache;
+
+import cache.BoundedCache.Node;
+
+/**
+ * A hashed timer wheel for expiring cache entries without a thread (or even a sort) per entry.
+ *
+ * Time is cut into ticks of a power-of-two number of nanoseconds, and the wheel has one bucket per tick, wrapping
+ * around after 256 ticks. Scheduling an entry just links it into the bucket for its deadline, which is O(1).
+ * Whenever the cache runs its maintenance, the wheel walks the buckets for the ticks that have fully passed since
+ * the last run: entries whose deadline has arrived are expired, and everything else (entries from a later
+ * rotation, or whose deadline was pushed back by a read) is rescheduled. The sweep is amortized across the
+ * maintenance runs, and its cost is proportional to the number of entries due, not the size of the cache.
+ *
+ * This class is NOT thread safe; the cache only touches it while holding its eviction lock.
+ */
+final class TimerWheel<Key, Value> {
+    private static final int BUCKETS = 256;
+    private static final int BUCKET_MASK = BUCKETS - 1;
+    private static final long MINIMUM_TICK_NANOS = 1L << 20;
+
+    private final BoundedCache<Key, Value> cache;
+    private final Node<Key, Value>[] buckets;
+    private final int shift;
+    private long currentTime;
+
+    /**
+     * @param shortestDurationNanos the shortest expiry duration; the tick is sized so that duration spans many
+     *                              buckets, so entries are swept reasonably close to their deadlines
+     */
+    TimerWheel(BoundedCache<Key, Value> cache, long shortestDurationNanos, long now) {
+        this.cache = cache;
+        @SuppressWarnings("unchecked")
+        Node<Key, Value>[] buckets = (Node<Key, Value>[]) new Node<?, ?>[BUCKETS];
+        this.buckets = buckets;
+        for (int i = 0; i < BUCKETS; i++) {
+            Node<Key, Value> sentinel = new Node<>(null);
+            sentinel.timerPrev = sentinel;
+            sentinel.timerNext = sentinel;
+            buckets[i] = sentinel;
+        }
+
+        long tick = Math.max(MINIMUM_TICK_NANOS, shortestDurationNanos / 64);
+        this.shift = 64 - Long.numberOfLeadingZeros(tick - 1);
+        this.currentTime = now;
+    }
+
+    /**
+     * Schedules (or reschedules) the node to be checked at the given time.
+     */
+    void schedule(Node<Key, Value> node, long time) {
+        deschedule(node);
+
+        Node<Key, Value> sentinel = buckets[(int) ((time >> shift) & BUCKET_MASK)];
+        node.timerPrev = sentinel.timerPrev;
+        node.timerNext = sentinel;
+        sentinel.timerPrev.timerNext = node;
+        sentinel.timerPrev = node;
+    }
+
+    void deschedule(Node<Key, Value> node) {
+        if (node.timerNext != null) {
+            node.timerPrev.timerNext = node.timerNext;
+            node.timerNext.timerPrev = node.timerPrev;
+            node.timerPrev = null;
+            node.timerNext = null;
+        }
+    }
+
+    /**
+     * Expires the due entries in every bucket whose tick has completely passed since the previous call.
+     */
+    void advance(long now) {
+        long previousTicks = currentTime >> shift;
+        long currentTicks = now >> shift;
+        currentTime = now;
+
+        for (long tick = previousTicks; tick < currentTicks && tick - previousTicks < BUCKETS; tick++) {
+            expireBucket(buckets[(int) (tick & BUCKET_MASK)], now);
+        }
+    }
+
+    private void expireBucket(Node<Key, Value> sentinel, long now) {
+        // detach the whole list first, so rescheduling into the same bucket can't make this loop forever
+        Node<Key, Value> node = sentinel.timerNext;
+        sentinel.timerPrev.timerNext = null;
+        sentinel.timerNext = sentinel;
+        sentinel.timerPrev = sentinel;
+
+        while (node != null && node != sentinel) {
+            Node<Key, Value> next = node.timerNext;
+            node.timerPrev = null;
+            node.timerNext = null;
+
+            long expirationTime = cache.expirationTime(node, now);
+            if (expirationTime - now <= 0) {
+                cache.expire(node);
+            } else {
+                schedule(node, expirationTime);
+            }
+            node = next;
+        }
+    }
+}
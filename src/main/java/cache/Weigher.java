@@ -0,0 +1,35 @@
+package cache;
+
+/**
+ * Calculates the weight of a cache entry, so that a bounded cache can cap the total "cost" of what it holds
+ * rather than just the number of entries (e.g. the approximate number of bytes a value occupies).
+ *
+ * @param <Key> The key type used to key values in the cache
+ * @param <Value> The value type the cache will return
+ */
+@FunctionalInterface
+public interface Weigher<Key, Value> {
+
+    /**
+     * Returns the weight of the entry. Weights are measured once, when the value is loaded, and must be
+     * non-negative.
+     */
+    int weigh(Key key, Value value);
+
+    /**
+     * A weigher where every entry has a weight of 1, which makes a maximum weight a maximum entry count.
+     */
+    @SuppressWarnings("unchecked")
+    static <Key, Value> Weigher<Key, Value> singleton() {
+        return (Weigher<Key, Value>) SingletonWeigher.INSTANCE;
+    }
+}
+
+enum SingletonWeigher implements Weigher<Object, Object> {
+    INSTANCE;
+
+    @Override
+    public int weigh(Object key, Object value) {
+        return 1;
+    }
+}
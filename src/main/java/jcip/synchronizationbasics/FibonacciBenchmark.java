@@ -1,30 +1,117 @@
 package jcip.synchronizationbasics;
 
+import org.openjdk.jmh.annotations.AuxCounters;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Benchmarks FibonacciService end to end, over HTTP. The server is started in-process for each handler, so one
+ * run compares all of them:
+ *
+ *   java -cp ... jcip.synchronizationbasics.FibonacciBenchmark FibonacciBenchmark
+ *
+ * Each op is 90 calls from three concurrent clients (30 each for inputs 50, 9 and 13). Besides the time, the
+ * responses that came back with the wrong number are counted as "violations"; a thread safe handler should always
+ * report 0. JMH only reports these extra counters for the throughput and average time modes, so they show up next
+ * to callServiceMultithreaded; the sampled run logs its count at the end of each iteration instead.
+ */
 public class FibonacciBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(FibonacciBenchmark.class);
 
     public static void main(String[] args) throws Exception {
         org.openjdk.jmh.Main.main(args);
     }
 
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({
+                "UnsafeCachingFibonacci",
+                "OverlySyncedCachingFibonacci",
+                "ImmutableCachingFibonacci",
+                "ConcurrentCachingFibonacci"
+        })
+        public String handler;
+
+        @Setup(Level.Trial)
+        public void start() {
+            FibonacciService.start(handler);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            FibonacciService.stopServer();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Violations {
+        public long violations;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            violations = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void report() {
+            if (violations > 0) {
+                log.warn("Incorrect results returned this iteration: violations={}", violations);
+            }
+        }
+    }
+
     @Benchmark
     @Fork(value = 1, warmups = 1)
     @BenchmarkMode(Mode.AverageTime)
     @OutputTimeUnit(TimeUnit.MILLISECONDS)
-    public static void callServiceMultithreaded() {
+    public void callServiceMultithreaded(Server server, Violations violations) {
+        violations.violations += callService();
+    }
+
+    /**
+     * The same calls, sampled so the results include the p50, p99 and p99.9 latency of an op as well as the
+     * average.
+     */
+    @Benchmark
+    @Fork(value = 1, warmups = 1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void callServiceSampled(Server server, Violations violations) {
+        violations.violations += callService();
+    }
+
+    private static int callService() {
+        FibonacciClient[] clients = {
+                FibonacciClient.newCountdownClient("A", 30, 50, "12586269025"),
+                FibonacciClient.newCountdownClient("B", 30, 9, "34"),
+                FibonacciClient.newCountdownClient("C", 30, 13, "233")
+        };
         CompletableFuture<Void> all = CompletableFuture.allOf(
-                CompletableFuture.runAsync(FibonacciClient.newCountdownClient("A", 30, 50, "12586269025")),
-                CompletableFuture.runAsync(FibonacciClient.newCountdownClient("B", 30, 9, "34")),
-                CompletableFuture.runAsync(FibonacciClient.newCountdownClient("C", 30, 13, "233"))
+                CompletableFuture.runAsync(clients[0]),
+                CompletableFuture.runAsync(clients[1]),
+                CompletableFuture.runAsync(clients[2])
         );
         all.join();
+
+        int violations = 0;
+        for (FibonacciClient client : clients) {
+            violations += client.getViolations();
+        }
+        return violations;
     }
 }
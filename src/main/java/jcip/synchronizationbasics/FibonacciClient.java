@@ -42,6 +42,7 @@ public class FibonacciClient implements Runnable {
     private String label;
     private Supplier<Integer> inputSupplier;
     private String expectedResult;
+    private int violations;
 
     public FibonacciClient(String label, String expectedResult, Supplier<Integer> inputSupplier) {
         this.client = new OkHttpClient();
@@ -65,7 +66,8 @@ public class FibonacciClient implements Runnable {
 
                 log.debug("{} called /fibonacci; input={} result={}", label, input, result);
                 if (!expectedResult.equals(result)) {
-                    log.warn("Return value is incorrect: result={}, expected={}", expectedResult, result);
+                    log.warn("Return value is incorrect: result={}, expected={}", result, expectedResult);
+                    violations++;
                 }
 
                 input = inputSupplier.get();
@@ -76,6 +78,13 @@ public class FibonacciClient implements Runnable {
         }
     }
 
+    /**
+     * Returns how many responses didn't match the expected result. Only read this after run() has finished.
+     */
+    public int getViolations() {
+        return violations;
+    }
+
     private static class CountDownSupplier implements Supplier<Integer> {
         private int count;
         private int input;
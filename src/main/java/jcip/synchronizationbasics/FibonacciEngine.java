@@ -0,0 +1,299 @@
+package jcip.synchronizationbasics;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes Fibonacci numbers with the fast doubling method, which takes O(log n) steps instead of the O(n)
+ * additions of the textbook loop:
+ *
+ *   F(2k)   = F(k) * (2 * F(k+1) - F(k))
+ *   F(2k+1) = F(k)^2 + F(k+1)^2
+ *
+ * Starting from (F(0), F(1)), each bit of n (from the highest down) doubles k, and adds one if the bit is set.
+ * Every pair along the way is for a prefix of n's bits (n >> s), and those pairs are saved in a checkpoint table
+ * shared by all threads. A later request starts from the longest prefix of its bits that's already in the table,
+ * so nearby numbers (which share their high bits) skip most of the work. A request just past a checkpoint is even
+ * cheaper: it steps forward from it with a few additions, which cost far less than multiplying numbers that size.
+ *
+ * The table is a ConcurrentSkipListMap, so it can be searched by floor (the closest checkpoint below n) without
+ * locking. The pairs are immutable, so a thread that finds one can use it without any further synchronization.
+ *
+ * The table is limited both by count and by the memory its numbers take up (maximumCheckpointBytes, or the
+ * fibonacci.checkpointBytes system property by default), since a pair for a big n is huge: F(100,000,000) alone
+ * is about 8.7 MB. A pair bigger than an eighth of the memory limit isn't saved at all, so one huge request can't
+ * crowd out everything else. When there are too many checkpoints, the lowest are
+ * dropped first, as they're the cheapest to compute again; when they take up too much memory, the highest are
+ * dropped first, as they're the ones taking it up.
+ *
+ * For a huge n, the multiplications in the last few doubling steps are most of the work. Once the numbers reach
+ * parallelThresholdBits (the fibonacci.parallelThresholdBits system property by default), the three products of a
+ * step run at the same time, and each is itself split across the ForkJoinPool by a ParallelMultiplier, so one
+ * request can use every idle core. Below the threshold, or on a single core, everything runs on the caller.
+ */
+public class FibonacciEngine {
+    private static final int DEFAULT_MAXIMUM_CHECKPOINTS = 1024;
+    private static final long DEFAULT_MAXIMUM_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    // stepping forward costs one addition per step, a doubling step costs three multiplications
+    private static final int MAXIMUM_LINEAR_STEPS = 64;
+
+    // about 80,000 decimal digits; see ParallelFibonacciBenchmark
+    private static final int DEFAULT_PARALLEL_THRESHOLD_BITS = 1 << 18;
+
+    private final ConcurrentSkipListMap<Integer, Pair> checkpoints = new ConcurrentSkipListMap<>();
+    private final AtomicInteger checkpointCount = new AtomicInteger();
+    private final AtomicLong checkpointBytes = new AtomicLong();
+    private final int maximumCheckpoints;
+    private final long maximumCheckpointBytes;
+    private final ParallelMultiplier multiplier;
+
+    public FibonacciEngine() {
+        this(DEFAULT_MAXIMUM_CHECKPOINTS);
+    }
+
+    public FibonacciEngine(int maximumCheckpoints) {
+        this(
+                maximumCheckpoints,
+                ForkJoinPool.commonPool(),
+                Integer.getInteger("fibonacci.parallelThresholdBits", DEFAULT_PARALLEL_THRESHOLD_BITS)
+        );
+    }
+
+    /**
+     * @param pool the pool that multiplications of numbers above parallelThresholdBits are split across
+     * @param parallelThresholdBits the size, in bits, from which multiplications run in parallel; use
+     *                              Integer.MAX_VALUE to always run on the calling thread
+     */
+    public FibonacciEngine(int maximumCheckpoints, ForkJoinPool pool, int parallelThresholdBits) {
+        this(
+                maximumCheckpoints,
+                Long.getLong("fibonacci.checkpointBytes", DEFAULT_MAXIMUM_CHECKPOINT_BYTES),
+                pool,
+                parallelThresholdBits
+        );
+    }
+
+    /**
+     * @param maximumCheckpointBytes the most memory the numbers in the checkpoint table may take up
+     * @param pool the pool that multiplications of numbers above parallelThresholdBits are split across
+     * @param parallelThresholdBits the size, in bits, from which multiplications run in parallel; use
+     *                              Integer.MAX_VALUE to always run on the calling thread
+     */
+    public FibonacciEngine(
+            int maximumCheckpoints,
+            long maximumCheckpointBytes,
+            ForkJoinPool pool,
+            int parallelThresholdBits
+    ) {
+        if (maximumCheckpoints < 1) {
+            throw new IllegalArgumentException("maximumCheckpoints must be positive: " + maximumCheckpoints);
+        }
+        if (maximumCheckpointBytes < 1) {
+            throw new IllegalArgumentException("maximumCheckpointBytes must be positive: " + maximumCheckpointBytes);
+        }
+        this.maximumCheckpoints = maximumCheckpoints;
+        this.maximumCheckpointBytes = maximumCheckpointBytes;
+        this.multiplier = new ParallelMultiplier(pool, parallelThresholdBits);
+    }
+
+    /**
+     * Returns the n'th Fibonacci number, where F(0) = 0 and F(1) = 1.
+     *
+     * @param n the index in the sequence; must not be negative
+     * @return F(n)
+     */
+    public BigInteger fibonacci(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must not be negative: " + n);
+        }
+        return pair(n).current;
+    }
+
+    /**
+     * Returns F(from) through F(to), inclusive. Only F(from) is computed from scratch (or from a checkpoint);
+     * every number after it is just the sum of the two before.
+     *
+     * @param from the first index; must not be negative
+     * @param to the last index; must not be less than from
+     * @return the numbers in order, starting with F(from)
+     */
+    public List<BigInteger> range(int from, int to) {
+        if (from < 0 || to < from) {
+            throw new IllegalArgumentException("invalid range: " + from + " to " + to);
+        }
+        List<BigInteger> numbers = new ArrayList<>(to - from + 1);
+        Pair pair = pair(from);
+        numbers.add(pair.current);
+        for (int n = from + 1; n <= to; n++) {
+            pair = pair.next();
+            numbers.add(pair.current);
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns F(n) for each of the given indices, in the same order. The indices are visited in sorted order, so
+     * an index close after the previous one is reached by stepping forward instead of starting over.
+     *
+     * @param ns the indices; none may be negative
+     * @return the numbers, where the i'th number is F(ns[i])
+     */
+    public List<BigInteger> batch(int... ns) {
+        int[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        if (sorted.length > 0 && sorted[0] < 0) {
+            throw new IllegalArgumentException("n must not be negative: " + sorted[0]);
+        }
+
+        Map<Integer, BigInteger> numbers = new HashMap<>();
+        Pair pair = null;
+        int previous = 0;
+        for (int n : sorted) {
+            if (pair != null && n - previous <= MAXIMUM_LINEAR_STEPS) {
+                pair = stepForward(pair, n - previous);
+            } else {
+                pair = pair(n);
+            }
+            previous = n;
+            numbers.put(n, pair.current);
+        }
+
+        List<BigInteger> results = new ArrayList<>(ns.length);
+        for (int n : ns) {
+            results.add(numbers.get(n));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of checkpoints currently saved.
+     */
+    public int checkpointCount() {
+        return checkpointCount.get();
+    }
+
+    /**
+     * Returns roughly how much memory the numbers in the saved checkpoints take up.
+     */
+    public long checkpointBytes() {
+        return checkpointBytes.get();
+    }
+
+    private Pair pair(int n) {
+        Map.Entry<Integer, Pair> floor = checkpoints.floorEntry(n);
+        if (floor != null && n - floor.getKey() <= MAXIMUM_LINEAR_STEPS) {
+            return stepForward(floor.getValue(), n - floor.getKey());
+        }
+
+        // find the longest prefix of n's bits that's already been computed
+        int shift = 32 - Integer.numberOfLeadingZeros(n);
+        Pair pair = Pair.ZERO;
+        for (int s = 0; s < shift; s++) {
+            Pair checkpoint = checkpoints.get(n >>> s);
+            if (checkpoint != null) {
+                pair = checkpoint;
+                shift = s;
+                break;
+            }
+        }
+
+        while (shift > 0) {
+            shift--;
+            pair = doubled(pair);
+            if (((n >>> shift) & 1) == 1) {
+                pair = pair.next();
+            }
+            saveCheckpoint(n >>> shift, pair);
+        }
+        return pair;
+    }
+
+    /**
+     * Returns (F(2k), F(2k+1)) for the pair (F(k), F(k+1)), using the doubling formulas at the top. The three
+     * products don't depend on each other, so above the threshold they're computed at the same time.
+     */
+    private Pair doubled(Pair pair) {
+        BigInteger current = pair.current;
+        BigInteger next = pair.next;
+        BigInteger difference = next.shiftLeft(1).subtract(current);
+        if (!multiplier.isParallel(current.bitLength())) {
+            return new Pair(current.multiply(difference), current.multiply(current).add(next.multiply(next)));
+        }
+
+        BigInteger[] products = multiplier.multiplyAll(
+                new BigInteger[] {current, current, next},
+                new BigInteger[] {difference, current, next}
+        );
+        return new Pair(products[0], products[1].add(products[2]));
+    }
+
+    private static Pair stepForward(Pair pair, int steps) {
+        for (int i = 0; i < steps; i++) {
+            pair = pair.next();
+        }
+        return pair;
+    }
+
+    private void saveCheckpoint(int k, Pair pair) {
+        long bytes = pair.bytes();
+        if (bytes > maximumCheckpointBytes / 8 || checkpoints.putIfAbsent(k, pair) != null) {
+            return;
+        }
+        // the totals can briefly overshoot while threads race to add, but each of them removes entries until
+        // they're back under the maximums, so the table settles there
+        checkpointBytes.addAndGet(bytes);
+        if (checkpointCount.incrementAndGet() > maximumCheckpoints) {
+            removed(checkpoints.pollFirstEntry());
+        }
+        while (checkpointBytes.get() > maximumCheckpointBytes && removed(checkpoints.pollLastEntry())) {
+            // keep dropping the biggest
+        }
+    }
+
+    private boolean removed(Map.Entry<Integer, Pair> entry) {
+        if (entry == null) {
+            return false;
+        }
+        checkpointCount.decrementAndGet();
+        checkpointBytes.addAndGet(-entry.getValue().bytes());
+        return true;
+    }
+
+    /**
+     * The consecutive Fibonacci numbers F(k) and F(k+1).
+     */
+    private static final class Pair {
+        static final Pair ZERO = new Pair(BigInteger.ZERO, BigInteger.ONE);
+
+        final BigInteger current;
+        final BigInteger next;
+
+        Pair(BigInteger current, BigInteger next) {
+            this.current = current;
+            this.next = next;
+        }
+
+        /**
+         * Returns roughly how much memory the two numbers take up.
+         */
+        long bytes() {
+            return ((long) current.bitLength() + next.bitLength()) / 8;
+        }
+
+        /**
+         * Returns (F(k+1), F(k+2)).
+         */
+        Pair next() {
+            return new Pair(next, current.add(next));
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package jcip.synchronizationbasics;
 
+import cache.Cache;
+import cache.CacheBuilder;
+import cache.CacheSnapshot;
+import cache.Codec;
+import cache.ConcurrentStatsCounter;
+import cache.StatsCounter;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 import spark.Route;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static spark.Spark.*;
@@ -17,10 +33,84 @@ import static spark.Spark.*;
  */
 public class FibonacciService {
     private static Logger logger = LoggerFactory.getLogger(FibonacciService.class);
+    private static final FibonacciEngine engine = new FibonacciEngine();
+    private static final int MAXIMUM_NUMBERS_PER_REQUEST = 10_000;
+    private static final ServiceMetrics metrics = new ServiceMetrics();
 
+    // a number the engine must get right, for /health; small enough to be instant even uncached
+    private static final int HEALTH_CHECK_INPUT = 90;
+    private static final BigInteger HEALTH_CHECK_FIBONACCI = new BigInteger("2880067194370816120");
+
+    /**
+     * Starts the server. The handler can be picked by passing its class name as the first argument (e.g.
+     * ConcurrentCachingFibonacci); the default is UnsafeCachingFibonacci. The request threads are configured with
+     * system properties; see ServerConfig.
+     */
     public static void main(String[] args) {
-        logger.info("Starting my REST server!");
-        get("/fibonacci/:num", new UnsafeCachingFibonacci());
+        String handler = args.length > 0 ? args[0] : UnsafeCachingFibonacci.class.getSimpleName();
+        logger.info("Starting my REST server! handler={}", handler);
+        start(handler);
+    }
+
+    /**
+     * Registers the routes, with the named handler serving /fibonacci/:num, and starts the server. Spark's
+     * server is static, so only one can run at a time; call stop() before starting another.
+     *
+     * Every /fibonacci route is timed (see ServiceMetrics), and the totals are served from /metrics in the
+     * Prometheus text format. /health answers 200 while the engine still computes a known number correctly.
+     * The /fibonacci routes are also guarded by a LoadShedder, while /metrics and /health never are, so an
+     * overloaded server can still be watched.
+     */
+    static void start(String handler) {
+        start(handler, ServerConfig.fromSystemProperties());
+    }
+
+    static void start(String handler, ServerConfig config) {
+        logger.info("Configuring server {}", config);
+        ThreadPool threadPool = config.newThreadPool();
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory().withThreadPool(threadPool));
+        metrics.registerThreadPool(threadPool);
+        LoadShedder shedder = new LoadShedder(config, threadPool, metrics);
+
+        get("/fibonacci/batch/:nums", shedder.guard(metrics.timed(new BatchFibonacci())));
+        get("/fibonacci/range/:from/:to", shedder.guard(metrics.timed(new RangeFibonacci())));
+        get("/fibonacci/stream/:num", shedder.guard(metrics.timed(new StreamingFibonacci())));
+        get("/fibonacci/:num", shedder.guard(metrics.timed(newHandler(handler))));
+        get("/metrics", (request, response) -> {
+            response.type(ServiceMetrics.CONTENT_TYPE);
+            return metrics.scrape();
+        });
+        get("/health", (request, response) -> {
+            response.type("text/plain");
+            if (!HEALTH_CHECK_FIBONACCI.equals(engine.fibonacci(HEALTH_CHECK_INPUT))) {
+                halt(503, "DOWN\n");
+            }
+            return "UP\n";
+        });
+        awaitInitialization();
+    }
+
+    /**
+     * Stops the server and waits until it's down, so it can be started again.
+     */
+    static void stopServer() {
+        stop();
+        awaitStop();
+    }
+
+    static Route newHandler(String name) {
+        switch (name) {
+            case "UnsafeCachingFibonacci":
+                return new UnsafeCachingFibonacci();
+            case "OverlySyncedCachingFibonacci":
+                return new OverlySyncedCachingFibonacci();
+            case "ImmutableCachingFibonacci":
+                return new ImmutableCachingFibonacci();
+            case "ConcurrentCachingFibonacci":
+                return new ConcurrentCachingFibonacci();
+            default:
+                throw new IllegalArgumentException("unknown handler: " + name);
+        }
     }
 
     /**
@@ -34,6 +124,11 @@ public class FibonacciService {
     private static class UnsafeCachingFibonacci implements Route {
         private final AtomicReference<Integer> lastInput = new AtomicReference<>();
         private final AtomicReference<BigInteger> cachedFibonacci = new AtomicReference<>();
+        private final StatsCounter stats = new ConcurrentStatsCounter();
+
+        UnsafeCachingFibonacci() {
+            metrics.registerCache(getClass().getSimpleName(), stats::snapshot);
+        }
 
         @Override
         public Object handle(Request request, Response response) throws Exception {
@@ -42,8 +137,10 @@ public class FibonacciService {
 
             if (input.equals(lastInput.get())) {
                 logger.debug("Cache hit! input={}", input);
+                stats.recordHits(1);
                 return cachedFibonacci.get();
             } else {
+                stats.recordMisses(1);
                 BigInteger result = fibonacci(input);
                 lastInput.set(input);
                 cachedFibonacci.set(result);
@@ -64,6 +161,11 @@ public class FibonacciService {
     private static class OverlySyncedCachingFibonacci implements Route {
         private final AtomicReference<Integer> lastInput = new AtomicReference<>();
         private final AtomicReference<BigInteger> cachedFibonacci = new AtomicReference<>();
+        private final StatsCounter stats = new ConcurrentStatsCounter();
+
+        OverlySyncedCachingFibonacci() {
+            metrics.registerCache(getClass().getSimpleName(), stats::snapshot);
+        }
 
         @Override
         public synchronized Object handle(Request request, Response response) throws Exception {
@@ -72,8 +174,10 @@ public class FibonacciService {
 
             if (input.equals(lastInput.get())) {
                 logger.debug("Cache hit! input={}", input);
+                stats.recordHits(1);
                 return cachedFibonacci.get();
             } else {
+                stats.recordMisses(1);
                 BigInteger result = fibonacci(input);
                 lastInput.set(input);
                 cachedFibonacci.set(result);
@@ -98,6 +202,11 @@ public class FibonacciService {
      */
     private static class ImmutableCachingFibonacci implements Route {
         private volatile ImmutableOneFibonacciCache cache = ImmutableOneFibonacciCache.emptyCache();
+        private final StatsCounter stats = new ConcurrentStatsCounter();
+
+        ImmutableCachingFibonacci() {
+            metrics.registerCache(getClass().getSimpleName(), stats::snapshot);
+        }
 
         @Override
         public Object handle(Request request, Response response) throws Exception {
@@ -110,11 +219,13 @@ public class FibonacciService {
             // version visible to all threads
             BigInteger fibonacci = cache.getLastFibonacci(input);
             if (fibonacci == null) {
+                stats.recordMisses(1);
                 fibonacci = fibonacci(input);
 
                 // b/c the "cache" is volatile, when a thread calls update, it is called on the LAST written version
                 cache = cache.update(input, fibonacci);
             } else {
+                stats.recordHits(1);
                 logger.debug("Cache hit! input={}, cache.version={}", input, cache.version);
             }
 
@@ -122,6 +233,167 @@ public class FibonacciService {
         }
     }
 
+    /**
+     * A handler that remembers many results instead of just the last one, using a BoundedCache keyed by input.
+     *
+     * The handlers above all miss whenever the input changes, so with several clients asking for different
+     * numbers (like the 50/9/13 mix in FibonacciBenchmark) they almost never hit. The cache holds every input
+     * until it runs out of room, and it's bounded by the size of the results (roughly their bytes), so a few huge
+     * numbers can't take up all of the heap. Concurrent requests for the same input share one computation: the
+     * first one starts the load, and the rest wait on the same future. With -Dfibonacci.snapshot set, the cache is
+     * also saved to that file every 30 seconds, and a restarted server is warmed from it (see CacheSnapshot).
+     *
+     * FibonacciBenchmark compares it with the other handlers over HTTP, and RouteBenchmark without the HTTP
+     * round trips, for a range of hit rates. Over HTTP, most of each op is the round trips, so the gap between the
+     * handlers is smaller than the gap in hit rate.
+     */
+    private static class ConcurrentCachingFibonacci implements Route {
+        private static final long MAXIMUM_CACHED_BYTES = 64 * 1024 * 1024;
+
+        private static final long SNAPSHOT_PERIOD_SECONDS = 30;
+
+        private final Cache<Integer, BigInteger> cache;
+
+        ConcurrentCachingFibonacci() {
+            CacheBuilder<Integer, BigInteger> builder = CacheBuilder.<Integer, BigInteger>newBuilder()
+                    .maximumWeight(MAXIMUM_CACHED_BYTES, (input, fibonacci) -> fibonacci.bitLength() / 8 + 1)
+                    .recordStats();
+
+            // with -Dfibonacci.offHeapBytes=<n>, up to n bytes of results are also kept off-heap, out of the GC's way
+            long offHeapBytes = Long.getLong("fibonacci.offHeapBytes", 0);
+            if (offHeapBytes > 0) {
+                builder.offHeap(offHeapBytes, Codec.bigIntegers());
+            }
+
+            // with -Dfibonacci.snapshot=<file>, the cache is saved periodically and warmed from the file on restart
+            String snapshotFile = System.getProperty("fibonacci.snapshot");
+            if (snapshotFile == null) {
+                cache = builder.build(FibonacciService::fibonacci);
+            } else {
+                CacheSnapshot<Integer, BigInteger> snapshot =
+                        new CacheSnapshot<>(Paths.get(snapshotFile), Codec.integers(), Codec.bigIntegers());
+                cache = builder.build(snapshot.loadingFrom(FibonacciService::fibonacci));
+                ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "fibonacci-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                snapshot.scheduleWrites(cache, scheduler, SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+            }
+            metrics.registerCache(getClass().getSimpleName(), cache::stats);
+        }
+
+        @Override
+        public Object handle(Request request, Response response) throws Exception {
+            // we are assuming well formed input
+            Integer input = Integer.parseInt(request.params("num"));
+            return cache.get(input);
+        }
+    }
+
+    /**
+     * Returns the numbers for a comma separated list of inputs (e.g. /fibonacci/batch/50,9,13), one per line in
+     * the order they were asked for. A client that needs many numbers saves a round trip per number, and inputs
+     * near each other are computed by stepping forward from the last one instead of from scratch.
+     */
+    private static class BatchFibonacci implements Route {
+
+        @Override
+        public Object handle(Request request, Response response) throws Exception {
+            String[] params = request.params("nums").split(",");
+            if (params.length > MAXIMUM_NUMBERS_PER_REQUEST) {
+                halt(400, "At most " + MAXIMUM_NUMBERS_PER_REQUEST + " numbers can be requested at once");
+            }
+
+            // we are assuming well formed input
+            int[] inputs = new int[params.length];
+            for (int i = 0; i < params.length; i++) {
+                inputs[i] = Integer.parseInt(params[i].trim());
+            }
+            long start = System.nanoTime();
+            List<BigInteger> numbers = engine.batch(inputs);
+            recordComputation(start, numbers);
+            return joinLines(numbers);
+        }
+    }
+
+    /**
+     * Returns the numbers from one input to another, inclusive (e.g. /fibonacci/range/10/20), one per line. Only
+     * the first number is computed from scratch; each one after it is the sum of the previous two.
+     */
+    private static class RangeFibonacci implements Route {
+
+        @Override
+        public Object handle(Request request, Response response) throws Exception {
+            // we are assuming well formed input
+            int from = Integer.parseInt(request.params("from"));
+            int to = Integer.parseInt(request.params("to"));
+            if (from < 0) {
+                halt(400, "A range can't start below 0");
+            }
+            // as a long, so a huge range can't overflow into a small one
+            if (to < from || (long) to - from >= MAXIMUM_NUMBERS_PER_REQUEST) {
+                halt(400, "A range must be in order and cover at most " + MAXIMUM_NUMBERS_PER_REQUEST + " numbers");
+            }
+            long start = System.nanoTime();
+            List<BigInteger> numbers = engine.range(from, to);
+            recordComputation(start, numbers);
+            return joinLines(numbers);
+        }
+    }
+
+    /**
+     * Writes the number straight to the response as it's converted, for numbers too big to comfortably turn into
+     * one String (e.g. /fibonacci/stream/1000000). The encoding query parameter picks the format:
+     *
+     *   - decimal (the default): converted a chunk at a time by RadixWriter
+     *   - hex: written from the number's bytes, with no division at all
+     *   - binary: the raw big-endian bytes, as application/octet-stream
+     */
+    private static class StreamingFibonacci implements Route {
+        private static final int BUFFER_SIZE = 16 * 1024;
+
+        @Override
+        public Object handle(Request request, Response response) throws Exception {
+            // we are assuming well formed input
+            int input = Integer.parseInt(request.params("num"));
+            String encoding = request.queryParamOrDefault("encoding", "decimal");
+            if (!encoding.equals("decimal") && !encoding.equals("hex") && !encoding.equals("binary")) {
+                halt(400, "Unknown encoding: " + encoding);
+            }
+
+            BigInteger fibonacci = fibonacci(input);
+            response.type(encoding.equals("binary") ? "application/octet-stream" : "text/plain");
+            OutputStream out = new BufferedOutputStream(response.raw().getOutputStream(), BUFFER_SIZE);
+            if (encoding.equals("hex")) {
+                RadixWriter.writeHex(fibonacci, out);
+            } else if (encoding.equals("binary")) {
+                RadixWriter.writeBinary(fibonacci, out);
+            } else {
+                RadixWriter.writeDecimal(fibonacci, out);
+            }
+            out.flush();
+
+            // the body has already been written, so there's nothing left for Spark to serialize
+            return "";
+        }
+    }
+
+    private static void recordComputation(long startNanos, List<BigInteger> numbers) {
+        metrics.recordComputeTime(System.nanoTime() - startNanos);
+        for (BigInteger number : numbers) {
+            metrics.recordResultSize(number.bitLength());
+        }
+    }
+
+    private static String joinLines(List<BigInteger> numbers) {
+        StringBuilder lines = new StringBuilder();
+        for (BigInteger number : numbers) {
+            lines.append(number).append('\n');
+        }
+        return lines.toString();
+    }
+
     /**
      * Stores a single key/value pair, and encapsulates the logic to retrieve the value.
      *
@@ -162,26 +434,17 @@ public class FibonacciService {
     }
 
     /**
-     * Get the n'th fibonacci
+     * Get the n'th fibonacci. All of the handlers share one engine, so a number computed for one request
+     * speeds up the requests for the numbers near it.
      *
      * @param num
      * @return
      */
     private static BigInteger fibonacci(int num) {
-        if (num < 0) {
-            throw new IllegalArgumentException();
-        } else if (num == 0) {
-            return BigInteger.ZERO;
-        }
-
-        BigInteger a = BigInteger.ZERO;
-        BigInteger b = BigInteger.ONE;
-        for (int i = 1; i < num; i++) {
-            BigInteger next = a.add(b);
-            a = b;
-            b = next;
-        }
-
-        return b;
+        long start = System.nanoTime();
+        BigInteger fibonacci = engine.fibonacci(num);
+        metrics.recordComputeTime(System.nanoTime() - start);
+        metrics.recordResultSize(fibonacci.bitLength());
+        return fibonacci;
     }
 }
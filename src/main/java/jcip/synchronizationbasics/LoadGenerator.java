@@ -0,0 +1,331 @@
+package jcip.synchronizationbasics;
+
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Drives load against FibonacciService and reports the latency distribution.
+ *
+ * FibonacciClient waits for each response before sending the next request, so with a handful of clients there are
+ * never more than a handful of requests in flight. When the service slows down, the clients slow down with it,
+ * which hides exactly the latency we're trying to measure. This generator sends requests asynchronously through
+ * one OkHttp client (so every request shares the same dispatcher and connection pool), in one of two ways:
+ *
+ *   - open loop: requests go out at a constant rate, whether or not the earlier ones have come back. This is how
+ *     real traffic behaves, since users don't wait for each other.
+ *   - closed loop: a fixed number of connections, each sending its next request as soon as the last one returns.
+ *
+ * Latencies are recorded in HdrHistograms, with the open loop correcting for coordinated omission: each request
+ * is timed from when it was supposed to be sent, not when it actually was. If the service (or the generator
+ * itself) stalls for a second, the requests that should have gone out during that second are all counted as
+ * waiting for it, instead of quietly never being sent. The uncorrected service time is reported next to it, so
+ * the difference between the two shows how much a stall is hiding. The closed loop can't know when requests
+ * should have been sent, so it corrects against an expected interval, if one is given.
+ */
+public class LoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final OkHttpClient client;
+    private final String baseUrl;
+    private final IntSupplier inputs;
+    private final FibonacciEngine expected;
+
+    /**
+     * @param baseUrl where the service is running, e.g. http://localhost:4567
+     * @param inputs picks the input for each request; see fixed(), uniform() and mixOf()
+     * @param validate if true, each response is checked against a locally computed result
+     * @param maxConnections the most requests (and connections) in flight at once
+     */
+    public LoadGenerator(String baseUrl, IntSupplier inputs, boolean validate, int maxConnections) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConnections);
+        dispatcher.setMaxRequestsPerHost(maxConnections);
+
+        this.client = new OkHttpClient();
+        this.client.setDispatcher(dispatcher);
+        this.client.setConnectionPool(new ConnectionPool(maxConnections, TimeUnit.MINUTES.toMillis(5)));
+        this.client.setReadTimeout(1, TimeUnit.MINUTES);
+        this.baseUrl = baseUrl;
+        this.inputs = inputs;
+        this.expected = validate ? new FibonacciEngine() : null;
+    }
+
+    /**
+     * Usage: LoadGenerator (open requestsPerSecond | closed connections) seconds [baseUrl]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LoadGenerator (open requestsPerSecond | closed connections) seconds [baseUrl]");
+            System.exit(1);
+        }
+        String mode = args[0];
+        int load = Integer.parseInt(args[1]);
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[2]));
+        String baseUrl = args.length > 3 ? args[3] : "http://localhost:4567";
+
+        // the same mix of inputs as FibonacciBenchmark
+        IntSupplier inputs = mixOf(50, 9, 13);
+        LoadReport report;
+        if (mode.equals("open")) {
+            report = new LoadGenerator(baseUrl, inputs, true, 256).runOpenLoop(load, durationNanos);
+        } else {
+            report = new LoadGenerator(baseUrl, inputs, true, load).runClosedLoop(load, durationNanos, 0);
+        }
+        report.print(System.out);
+        System.exit(0);
+    }
+
+    /**
+     * Sends requestsPerSecond requests every second for the given duration, then waits for the outstanding ones.
+     */
+    public LoadReport runOpenLoop(int requestsPerSecond, long durationNanos) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        Run run = new Run();
+
+        long start = System.nanoTime();
+        long intendedStart = start;
+        while (intendedStart - start < durationNanos) {
+            parkUntil(intendedStart);
+            // if we fell behind, this goes out right away, but it's still timed from when it should have been sent
+            send(run, inputs.getAsInt(), intendedStart, null);
+            intendedStart += intervalNanos;
+        }
+        return run.finish(System.nanoTime() - start);
+    }
+
+    /**
+     * Keeps the given number of requests in flight for the given duration, then waits for the outstanding ones.
+     *
+     * @param expectedIntervalNanos how often each connection would send a request if the service kept up, for
+     *                              coordinated omission correction; 0 records the latencies as measured
+     */
+    public LoadReport runClosedLoop(int connections, long durationNanos, long expectedIntervalNanos)
+            throws InterruptedException {
+        Run run = new Run();
+        run.expectedIntervalNanos = expectedIntervalNanos;
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        Runnable sendNext = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                if (now - deadline < 0) {
+                    send(run, inputs.getAsInt(), now, this);
+                }
+            }
+        };
+        for (int i = 0; i < connections; i++) {
+            sendNext.run();
+        }
+
+        parkUntil(deadline);
+        return run.finish(System.nanoTime() - start);
+    }
+
+    /**
+     * Parks until System.nanoTime() reaches the deadline. A single parkNanos() can return early (on a spurious
+     * wakeup, or an unpark), which would send a request before its time, so it parks again for whatever is left.
+     */
+    private static void parkUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void send(Run run, int input, long intendedStart, Runnable onComplete) {
+        Request request = new Request.Builder()
+                .url(baseUrl + "/fibonacci/" + input)
+                .get()
+                .build();
+
+        run.outstanding.incrementAndGet();
+        long sent = System.nanoTime();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException exception) {
+                log.debug("Request failed input={}", input, exception);
+                run.errors.incrementAndGet();
+                complete();
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                ResponseBody body = response.body();
+                boolean succeeded = false;
+                try {
+                    String result = body.string();
+                    long now = System.nanoTime();
+                    run.record(now - intendedStart, now - sent);
+
+                    succeeded = response.isSuccessful();
+                    if (succeeded && expected != null && !expected.fibonacci(input).toString().equals(result)) {
+                        log.warn("Return value is incorrect: input={}, result={}", input, result);
+                        run.incorrect.incrementAndGet();
+                    }
+                } catch (IOException exception) {
+                    log.debug("Reading the response failed input={}", input, exception);
+                } finally {
+                    // whatever happened, the request is done; otherwise finish() waits for it until it times out,
+                    // and in the closed loop, its connection never sends another request
+                    if (!succeeded) {
+                        run.errors.incrementAndGet();
+                    }
+                    close(body);
+                    complete();
+                }
+            }
+
+            private void close(ResponseBody body) {
+                try {
+                    body.close();
+                } catch (IOException exception) {
+                    log.debug("Closing the response failed input={}", input, exception);
+                }
+            }
+
+            private void complete() {
+                run.requests.incrementAndGet();
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+                if (run.outstanding.decrementAndGet() == 0) {
+                    run.drained.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Always requests the same input.
+     */
+    public static IntSupplier fixed(int input) {
+        return () -> input;
+    }
+
+    /**
+     * Requests an input picked uniformly between min and max, inclusive.
+     */
+    public static IntSupplier uniform(int min, int max) {
+        return () -> ThreadLocalRandom.current().nextInt(min, max + 1);
+    }
+
+    /**
+     * Requests one of the given inputs, each equally likely.
+     */
+    public static IntSupplier mixOf(int... inputs) {
+        int[] copy = inputs.clone();
+        return () -> copy[ThreadLocalRandom.current().nextInt(copy.length)];
+    }
+
+    /**
+     * The state of one run. The recorders can be written to by any number of callback threads at once.
+     */
+    private static final class Run {
+        final Recorder latency = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+        final Recorder serviceTime = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong incorrect = new AtomicLong();
+        // starts at one for the run itself, so it can't hit zero until the generator is done sending
+        final AtomicLong outstanding = new AtomicLong(1);
+        final CountDownLatch drained = new CountDownLatch(1);
+        volatile long expectedIntervalNanos;
+
+        void record(long latencyNanos, long serviceTimeNanos) {
+            long clamped = Math.min(latencyNanos, HIGHEST_TRACKABLE_NANOS);
+            if (expectedIntervalNanos > 0) {
+                latency.recordValueWithExpectedInterval(clamped, expectedIntervalNanos);
+            } else {
+                latency.recordValue(clamped);
+            }
+            serviceTime.recordValue(Math.min(serviceTimeNanos, HIGHEST_TRACKABLE_NANOS));
+        }
+
+        LoadReport finish(long elapsedNanos) throws InterruptedException {
+            if (outstanding.decrementAndGet() > 0) {
+                drained.await(1, TimeUnit.MINUTES);
+            }
+            return new LoadReport(
+                    latency.getIntervalHistogram(),
+                    serviceTime.getIntervalHistogram(),
+                    requests.get(),
+                    errors.get(),
+                    incorrect.get(),
+                    elapsedNanos);
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    public static final class LoadReport {
+        public final Histogram latency;
+        public final Histogram serviceTime;
+        public final long requests;
+        public final long errors;
+        public final long incorrect;
+        public final long elapsedNanos;
+
+        LoadReport(
+                Histogram latency,
+                Histogram serviceTime,
+                long requests,
+                long errors,
+                long incorrect,
+                long elapsedNanos
+        ) {
+            this.latency = latency;
+            this.serviceTime = serviceTime;
+            this.requests = requests;
+            this.errors = errors;
+            this.incorrect = incorrect;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double throughputPerSecond() {
+            return requests / (elapsedNanos / 1e9);
+        }
+
+        public void print(PrintStream out) {
+            out.printf("requests=%d errors=%d incorrect=%d throughput=%.1f/s%n",
+                    requests, errors, incorrect, throughputPerSecond());
+            out.println("latency (ms, corrected for coordinated omission):");
+            printPercentiles(latency, out);
+            out.println("service time (ms, as measured):");
+            printPercentiles(serviceTime, out);
+        }
+
+        private static void printPercentiles(Histogram histogram, PrintStream out) {
+            out.printf("  p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f%n",
+                    histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(90) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getValueAtPercentile(99.9) / 1e6,
+                    histogram.getMaxValue() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package jcip.synchronizationbasics;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.Response;
+import spark.Route;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static spark.Spark.halt;
+
+/**
+ * Turns requests away with a 503 and a Retry-After header when the server is overloaded, rather than letting
+ * them wait.
+ *
+ * Without this, a server that falls behind queues every request it can't serve yet, and each one waits behind
+ * all of those before it: latency climbs for everyone, clients time out and retry, and the retries make the queue
+ * longer still. A 503 costs next to nothing to send, so answering some requests with one keeps the queue short and
+ * the latency of the rest roughly where it was.
+ *
+ * A request is shed if, when a thread picks it up, at least shedQueueDepth requests are still queued behind it
+ * for the pool, or if maxConcurrentRequests are already being handled. The first only applies to a
+ * QueuedThreadPool, and the second only if it's set; with virtual threads it's the only bound.
+ */
+final class LoadShedder {
+    private final ServerConfig config;
+    private final ThreadPool threadPool;
+    private final ServiceMetrics metrics;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final String retryAfter;
+
+    LoadShedder(ServerConfig config, ThreadPool threadPool, ServiceMetrics metrics) {
+        this.config = config;
+        this.threadPool = threadPool;
+        this.metrics = metrics;
+        this.retryAfter = Integer.toString(config.retryAfterSeconds);
+    }
+
+    /**
+     * Returns a route that runs the handler, unless the server is overloaded.
+     */
+    Route guard(Route handler) {
+        return (request, response) -> {
+            if (isQueueTooDeep()) {
+                shed(response);
+            }
+            if (config.maxConcurrentRequests == 0) {
+                return handler.handle(request, response);
+            }
+
+            if (inFlight.incrementAndGet() > config.maxConcurrentRequests) {
+                inFlight.decrementAndGet();
+                shed(response);
+            }
+            try {
+                return handler.handle(request, response);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        };
+    }
+
+    private boolean isQueueTooDeep() {
+        return threadPool instanceof QueuedThreadPool
+                && ((QueuedThreadPool) threadPool).getQueueSize() >= config.shedQueueDepth;
+    }
+
+    private void shed(Response response) {
+        metrics.recordShed();
+        response.header("Retry-After", retryAfter);
+        halt(503, "Overloaded, retry later\n");
+    }
+}
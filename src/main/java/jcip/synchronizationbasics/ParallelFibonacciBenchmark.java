@@ -0,0 +1,110 @@
+package jcip.synchronizationbasics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the sequential and parallel paths of FibonacciEngine, to find the size from which splitting the
+ * multiplications across cores pays off (the engine's parallelThresholdBits):
+ *
+ *   java -cp ... jcip.synchronizationbasics.ParallelFibonacciBenchmark ParallelFibonacciBenchmark
+ *
+ * multiply times one product of two random numbers of the given size, with BigInteger.multiply() (parallel=false)
+ * or a ParallelMultiplier (parallel=true), to show the crossover for a single product. fibonacci times a whole
+ * F(n) on a fresh engine, so no checkpoints are reused; F(n) has about 0.69n bits, and the parallel run splits
+ * everything from 2^16 bits up.
+ *
+ * Both use a pool with one thread per core. On a single core machine there's nothing to gain, and the parallel
+ * results only show the overhead.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelFibonacciBenchmark {
+    private static final int PARALLEL_BENCHMARK_THRESHOLD_BITS = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void start() {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Operands {
+        @Param({"65536", "262144", "1048576", "4194304"})
+        public int bits;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        BigInteger a;
+        BigInteger b;
+        ParallelMultiplier multiplier;
+
+        @Setup(Level.Trial)
+        public void create(Pool pool) {
+            Random random = new Random(42);
+            a = new BigInteger(bits, random).setBit(bits - 1);
+            b = new BigInteger(bits, random).setBit(bits - 1);
+            multiplier = new ParallelMultiplier(pool.pool, parallel ? PARALLEL_BENCHMARK_THRESHOLD_BITS : Integer.MAX_VALUE);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Engine {
+        @Param({"100000", "1000000", "10000000"})
+        public int n;
+
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        FibonacciEngine engine;
+
+        @Setup(Level.Invocation)
+        public void create(Pool pool) {
+            // each call gets a fresh engine, or every call after the first would be answered from a checkpoint
+            engine = new FibonacciEngine(1, pool.pool, parallel ? PARALLEL_BENCHMARK_THRESHOLD_BITS : Integer.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public BigInteger multiply(Operands operands) {
+        return operands.multiplier.multiply(operands.a, operands.b);
+    }
+
+    @Benchmark
+    public BigInteger fibonacci(Engine engine) {
+        return engine.engine.fibonacci(engine.n);
+    }
+}
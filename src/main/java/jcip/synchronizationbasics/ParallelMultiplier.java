@@ -0,0 +1,131 @@
+package jcip.synchronizationbasics;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Multiplies huge BigIntegers on several cores at once, with Karatsuba's method split across a ForkJoinPool.
+ *
+ * BigInteger.multiply() already switches to Karatsuba and then Toom-Cook as numbers grow, but it always runs on
+ * the calling thread. Karatsuba splits each operand into a high and a low half:
+ *
+ *   a * b = high * 2^2h + ((a1 + a0)(b1 + b0) - high - low) * 2^h + low,  where high = a1 * b1, low = a0 * b0
+ *
+ * so one product of n bits becomes three independent products of about n/2 bits, which can run in parallel.
+ * Those are split again while they're still above the threshold, and below it they're handed back to
+ * BigInteger.multiply() (which is as good as it gets for a single thread). A square (a * a) is split into three
+ * squares, so the leaves can use BigInteger's cheaper squaring.
+ *
+ * Splitting only pays off for numbers of hundreds of thousands of bits: the halves, sums and shifts are all
+ * linear in the size, and the tasks have to be big enough to outweigh the fork-join overhead. Below the threshold,
+ * or with a pool of a single thread, this is just BigInteger.multiply(). See ParallelFibonacciBenchmark for where
+ * the crossover is.
+ */
+final class ParallelMultiplier {
+    private final ForkJoinPool pool;
+    private final int thresholdBits;
+
+    /**
+     * @param pool the pool the products are split across
+     * @param thresholdBits products whose smaller operand has fewer bits than this aren't split
+     */
+    ParallelMultiplier(ForkJoinPool pool, int thresholdBits) {
+        if (thresholdBits < 64) {
+            throw new IllegalArgumentException("thresholdBits must be at least 64: " + thresholdBits);
+        }
+        this.pool = pool;
+        this.thresholdBits = thresholdBits;
+    }
+
+    /**
+     * Returns true if products with an operand this big will be split.
+     */
+    boolean isParallel(int bits) {
+        return bits >= thresholdBits && pool.getParallelism() > 1;
+    }
+
+    BigInteger multiply(BigInteger a, BigInteger b) {
+        if (!isParallel(Math.min(a.bitLength(), b.bitLength()))) {
+            return a.multiply(b);
+        }
+        return run(new Product(a, b));
+    }
+
+    /**
+     * Returns xs[i] * ys[i] for each i, with all of the products running at the same time.
+     */
+    BigInteger[] multiplyAll(BigInteger[] xs, BigInteger[] ys) {
+        Product[] products = new Product[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            products[i] = new Product(xs[i], ys[i]);
+        }
+        run(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(products);
+                return null;
+            }
+        });
+
+        BigInteger[] results = new BigInteger[products.length];
+        for (int i = 0; i < products.length; i++) {
+            results[i] = products[i].join();
+        }
+        return results;
+    }
+
+    private <T> T run(ForkJoinTask<T> task) {
+        // already on one of the pool's threads (e.g. inside another product), so just run it here
+        if (ForkJoinTask.getPool() == pool) {
+            return task.invoke();
+        }
+        return pool.invoke(task);
+    }
+
+    /**
+     * One product, split into three smaller ones while its operands are above the threshold.
+     */
+    private final class Product extends RecursiveTask<BigInteger> {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger a;
+        private final BigInteger b;
+
+        Product(BigInteger a, BigInteger b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (Math.min(a.bitLength(), b.bitLength()) < thresholdBits) {
+                // when a == b, BigInteger squares, which is cheaper than multiplying
+                return a.multiply(b);
+            }
+
+            boolean square = (a == b);
+            BigInteger x = a.abs();
+            BigInteger y = square ? x : b.abs();
+            int half = Math.max(x.bitLength(), y.bitLength()) / 2;
+
+            BigInteger x1 = x.shiftRight(half);
+            BigInteger x0 = x.subtract(x1.shiftLeft(half));
+            BigInteger y1 = square ? x1 : y.shiftRight(half);
+            BigInteger y0 = square ? x0 : y.subtract(y1.shiftLeft(half));
+            BigInteger xSum = x1.add(x0);
+            BigInteger ySum = square ? xSum : y1.add(y0);
+
+            Product high = new Product(x1, y1);
+            Product middle = new Product(xSum, ySum);
+            high.fork();
+            middle.fork();
+            BigInteger low = new Product(x0, y0).compute();
+            BigInteger cross = middle.join().subtract(high.join()).subtract(low);
+
+            BigInteger product = high.join().shiftLeft(2 * half).add(cross.shiftLeft(half)).add(low);
+            return (a.signum() * b.signum() < 0) ? product.negate() : product;
+        }
+    }
+}
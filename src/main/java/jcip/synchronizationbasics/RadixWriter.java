@@ -0,0 +1,138 @@
+package jcip.synchronizationbasics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes very large numbers to a stream a chunk at a time, instead of building the whole String first.
+ *
+ * BigInteger.toString() has to finish converting before it can return anything, and the String it returns (two
+ * bytes per digit, plus the copies made along the way) is several times the size of the number itself. Here the
+ * decimal conversion is done divide and conquer: the number is split in two by a power of ten with about half of
+ * its digits, and each half is split the same way, until the pieces fit in a long. Working from the high half
+ * down, the first digits can be written once the leftmost pieces have been divided out, and the quotients that
+ * are finished with can be collected as it goes.
+ *
+ * Hex and binary don't need any division at all, since the number is already stored in binary: they're written
+ * straight from its bytes.
+ */
+public final class RadixWriter {
+    // the most decimal digits that always fit in a long
+    private static final int DIGITS_PER_CHUNK = 18;
+    private static final BigInteger CHUNK_POWER = BigInteger.TEN.pow(DIGITS_PER_CHUNK);
+
+    // below this, splitting isn't worth it, and toString() won't take much memory anyway
+    private static final int SPLIT_THRESHOLD_BITS = 8 * 1024;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private RadixWriter() {
+    }
+
+    /**
+     * Writes the number in decimal, the same digits as BigInteger.toString().
+     */
+    public static void writeDecimal(BigInteger number, OutputStream out) throws IOException {
+        if (number.signum() < 0) {
+            out.write('-');
+            number = number.negate();
+        }
+        if (number.bitLength() < SPLIT_THRESHOLD_BITS) {
+            out.write(number.toString().getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        // powers.get(k) is 10^(DIGITS_PER_CHUNK * 2^k), up to the largest one that isn't bigger than the number
+        List<BigInteger> powers = new ArrayList<>();
+        for (BigInteger power = CHUNK_POWER; power.compareTo(number) <= 0; power = power.multiply(power)) {
+            powers.add(power);
+        }
+        writeDecimal(number, powers, powers.size() - 1, false, out);
+    }
+
+    /**
+     * Writes the number in lowercase hex, the same digits as BigInteger.toString(16).
+     */
+    public static void writeHex(BigInteger number, OutputStream out) throws IOException {
+        if (number.signum() < 0) {
+            out.write('-');
+            number = number.negate();
+        }
+        if (number.signum() == 0) {
+            out.write('0');
+            return;
+        }
+
+        byte[] magnitude = number.toByteArray();
+        int start = (magnitude[0] == 0) ? 1 : 0;
+        // like toString(16), the first digit is never a zero
+        if ((magnitude[start] & 0xF0) != 0) {
+            out.write(HEX_DIGITS[(magnitude[start] >>> 4) & 0xF]);
+        }
+        out.write(HEX_DIGITS[magnitude[start] & 0xF]);
+
+        byte[] chunk = new byte[8 * 1024];
+        int length = 0;
+        for (int i = start + 1; i < magnitude.length; i++) {
+            chunk[length++] = HEX_DIGITS[(magnitude[i] >>> 4) & 0xF];
+            chunk[length++] = HEX_DIGITS[magnitude[i] & 0xF];
+            if (length == chunk.length) {
+                out.write(chunk, 0, length);
+                length = 0;
+            }
+        }
+        out.write(chunk, 0, length);
+    }
+
+    /**
+     * Writes the magnitude of a non-negative number as big-endian bytes, with no leading zero bytes.
+     */
+    public static void writeBinary(BigInteger number, OutputStream out) throws IOException {
+        if (number.signum() < 0) {
+            throw new IllegalArgumentException("only non-negative numbers can be written as binary");
+        }
+        byte[] magnitude = number.toByteArray();
+        int start = (magnitude.length > 1 && magnitude[0] == 0) ? 1 : 0;
+        out.write(magnitude, start, magnitude.length - start);
+    }
+
+    /**
+     * @param level the number is less than powers.get(level + 1), or 10^DIGITS_PER_CHUNK if level is -1
+     * @param pad if true, writes leading zeros so exactly DIGITS_PER_CHUNK * 2^(level + 1) digits are written
+     */
+    private static void writeDecimal(
+            BigInteger number,
+            List<BigInteger> powers,
+            int level,
+            boolean pad,
+            OutputStream out
+    ) throws IOException {
+        if (level < 0) {
+            writeChunk(number.longValue(), pad, out);
+            return;
+        }
+
+        BigInteger[] split = number.divideAndRemainder(powers.get(level));
+        if (!pad && split[0].signum() == 0) {
+            writeDecimal(split[1], powers, level - 1, false, out);
+            return;
+        }
+        writeDecimal(split[0], powers, level - 1, pad, out);
+        split[0] = null;
+        writeDecimal(split[1], powers, level - 1, true, out);
+    }
+
+    private static void writeChunk(long chunk, boolean pad, OutputStream out) throws IOException {
+        String digits = Long.toString(chunk);
+        if (pad) {
+            for (int i = digits.length(); i < DIGITS_PER_CHUNK; i++) {
+                out.write('0');
+            }
+        }
+        out.write(digits.getBytes(StandardCharsets.US_ASCII));
+    }
+}
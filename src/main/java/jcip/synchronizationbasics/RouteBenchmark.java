@@ -0,0 +1,145 @@
+package jcip.synchronizationbasics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the FibonacciService handlers by calling Route.handle() directly, with stub requests, so none of the
+ * time goes to HTTP. FibonacciBenchmark's ~5.5 ms/op is almost all network and Jetty, which hides the differences
+ * between the handlers themselves.
+ *
+ * Each thread replays a precomputed sequence of inputs, where each input repeats the one before it with the
+ * probability given by hitRatio (and is otherwise one of 16 others). The handlers that only remember the last
+ * input hit at about that rate with one thread, and less with more threads, since the threads overwrite each
+ * other's last input. ConcurrentCachingFibonacci remembers all 16, so once it's warm it always hits.
+ *
+ * Run main() to sweep the thread count from 1 up to all of the cores, with the GC profiler measuring the
+ * allocation per call (gc.alloc.rate.norm), which is the cost ImmutableCachingFibonacci's comments guess at.
+ * Any JMH command line options are passed through.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RouteBenchmark {
+    private static final int DISTINCT_INPUTS = 16;
+    private static final int SEQUENCE_LENGTH = 1 << 12;
+    private static final int MASK = SEQUENCE_LENGTH - 1;
+
+    @Param({
+            "UnsafeCachingFibonacci",
+            "OverlySyncedCachingFibonacci",
+            "ImmutableCachingFibonacci",
+            "ConcurrentCachingFibonacci"
+    })
+    String handler;
+
+    @Param({"0.0", "0.5", "0.9", "1.0"})
+    double hitRatio;
+
+    @Param({"1000"})
+    int firstInput;
+
+    Route route;
+    StubRequest[] requests;
+    Response response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        route = FibonacciService.newHandler(handler);
+        requests = new StubRequest[DISTINCT_INPUTS];
+        for (int i = 0; i < DISTINCT_INPUTS; i++) {
+            requests[i] = new StubRequest(firstInput + i);
+        }
+        response = new StubResponse();
+    }
+
+    @State(Scope.Thread)
+    public static class Inputs {
+        StubRequest[] sequence;
+        int index;
+
+        @Setup(Level.Trial)
+        public void setup(RouteBenchmark benchmark) {
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+            sequence = new StubRequest[SEQUENCE_LENGTH];
+            int previous = random.nextInt(DISTINCT_INPUTS);
+            for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+                int next = previous;
+                if (random.nextDouble() >= benchmark.hitRatio) {
+                    // any input but the last one
+                    next = (previous + 1 + random.nextInt(DISTINCT_INPUTS - 1)) % DISTINCT_INPUTS;
+                }
+                sequence[i] = benchmark.requests[next];
+                previous = next;
+            }
+        }
+    }
+
+    @Benchmark
+    public Object handle(Inputs inputs) throws Exception {
+        return route.handle(inputs.sequence[inputs.index++ & MASK], response);
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLine)
+                    .include(RouteBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads);
+            new Runner(options.build()).run();
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * A request with just the one path parameter the handlers read. Spark's Request has a protected constructor
+     * for exactly this, so no servlet request is needed.
+     */
+    static final class StubRequest extends Request {
+        private final String num;
+
+        StubRequest(int num) {
+            this.num = Integer.toString(num);
+        }
+
+        @Override
+        public String params(String param) {
+            return "num".equals(param) ? num : null;
+        }
+    }
+
+    /**
+     * The handlers return their result rather than writing to the response, so it's never touched.
+     */
+    static final class StubResponse extends Response {
+    }
+}
@@ -0,0 +1,136 @@
+package jcip.synchronizationbasics;
+
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How FibonacciService's server runs its requests, read from system properties at startup:
+ *
+ *   - fibonacci.server.maxThreads (default 200) and fibonacci.server.minThreads (default 8): the size of Jetty's
+ *     request thread pool
+ *   - fibonacci.server.idleTimeoutMillis (default 60000): how long a thread above the minimum may sit idle
+ *   - fibonacci.server.queueCapacity (default 1024): how many requests may wait for a thread. The queue is
+ *     bounded, so a burst can't pile up an unbounded backlog (and unbounded latency) behind busy threads; past
+ *     this, Jetty refuses the work outright
+ *   - fibonacci.server.shedQueueDepth (default half the queue capacity): once this many requests are waiting,
+ *     LoadShedder answers new ones with a cheap 503 instead, which drains the queue before it overflows. It must
+ *     be less than the queue capacity, unless requests run on virtual threads, which aren't queued
+ *   - fibonacci.server.maxConcurrentRequests (default 0, meaning no limit): how many requests may be handled at
+ *     once, which is the only bound there is with virtual threads
+ *   - fibonacci.server.retryAfterSeconds (default 1): the Retry-After sent with a 503
+ *   - fibonacci.server.virtualThreads (default false): run each request on its own virtual thread instead of a
+ *     pooled one (see VirtualThreadPool); ignored, with a warning, on a JVM without them
+ *
+ * Spark's own threadPool() setting only covers the pool's size, not its queue, hence the custom pool.
+ */
+final class ServerConfig {
+    private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
+    private static final String PREFIX = "fibonacci.server.";
+
+    final int maxThreads;
+    final int minThreads;
+    final int idleTimeoutMillis;
+    final int queueCapacity;
+    final int shedQueueDepth;
+    final int maxConcurrentRequests;
+    final int retryAfterSeconds;
+    final boolean virtualThreads;
+
+    ServerConfig(
+            int maxThreads,
+            int minThreads,
+            int idleTimeoutMillis,
+            int queueCapacity,
+            int shedQueueDepth,
+            int maxConcurrentRequests,
+            int retryAfterSeconds,
+            boolean virtualThreads
+    ) {
+        requirePositive(maxThreads, "maxThreads");
+        requirePositive(minThreads, "minThreads");
+        requirePositive(idleTimeoutMillis, "idleTimeoutMillis");
+        requirePositive(queueCapacity, "queueCapacity");
+        requirePositive(shedQueueDepth, "shedQueueDepth");
+        requirePositive(retryAfterSeconds, "retryAfterSeconds");
+        if (minThreads > maxThreads) {
+            throw new IllegalArgumentException("minThreads must be at most maxThreads: " + minThreads + " > " + maxThreads);
+        }
+        // without virtual threads (asked for, or supported), requests wait in a queued pool
+        boolean queued = !virtualThreads || !VirtualThreadPool.isSupported();
+        if (queued && shedQueueDepth >= queueCapacity) {
+            // the queue would be full, and Jetty refusing the work, before there was ever anything to shed
+            throw new IllegalArgumentException(
+                    "shedQueueDepth must be less than queueCapacity: " + shedQueueDepth + " >= " + queueCapacity);
+        }
+        if (maxConcurrentRequests < 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must not be negative: " + maxConcurrentRequests);
+        }
+
+        this.maxThreads = maxThreads;
+        this.minThreads = minThreads;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.queueCapacity = queueCapacity;
+        this.shedQueueDepth = shedQueueDepth;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.virtualThreads = virtualThreads;
+    }
+
+    static ServerConfig fromSystemProperties() {
+        int queueCapacity = Integer.getInteger(PREFIX + "queueCapacity", 1024);
+        return new ServerConfig(
+                Integer.getInteger(PREFIX + "maxThreads", 200),
+                Integer.getInteger(PREFIX + "minThreads", 8),
+                Integer.getInteger(PREFIX + "idleTimeoutMillis", 60_000),
+                queueCapacity,
+                Integer.getInteger(PREFIX + "shedQueueDepth", Math.max(1, queueCapacity / 2)),
+                Integer.getInteger(PREFIX + "maxConcurrentRequests", 0),
+                Integer.getInteger(PREFIX + "retryAfterSeconds", 1),
+                Boolean.getBoolean(PREFIX + "virtualThreads")
+        );
+    }
+
+    /**
+     * Creates a new thread pool for the server. A pool can't be restarted once its server has stopped, so each
+     * start of the server needs a new one.
+     */
+    ThreadPool newThreadPool() {
+        if (virtualThreads) {
+            if (VirtualThreadPool.isSupported()) {
+                return new VirtualThreadPool();
+            }
+            logger.warn("Virtual threads aren't supported by this JVM, using a thread pool instead. java.version={}",
+                    System.getProperty("java.version"));
+        }
+
+        QueuedThreadPool pool = new QueuedThreadPool(
+                maxThreads,
+                minThreads,
+                idleTimeoutMillis,
+                new BlockingArrayQueue<>(Math.min(queueCapacity, 1024), Math.min(queueCapacity, 1024), queueCapacity)
+        );
+        pool.setName("fibonacci-request");
+        return pool;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{maxThreads=" + maxThreads
+                + ", minThreads=" + minThreads
+                + ", idleTimeoutMillis=" + idleTimeoutMillis
+                + ", queueCapacity=" + queueCapacity
+                + ", shedQueueDepth=" + shedQueueDepth
+                + ", maxConcurrentRequests=" + maxConcurrentRequests
+                + ", retryAfterSeconds=" + retryAfterSeconds
+                + ", virtualThreads=" + virtualThreads + "}";
+    }
+
+    private static void requirePositive(int value, String setting) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(setting + " must be positive: " + value);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package jcip.synchronizationbasics;
+
+import cache.CacheStats;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.Route;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts what FibonacciService is doing, and writes it out in the Prometheus text format for /metrics.
+ *
+ * Recording happens on every request, so it only ever increments LongAdders that were created up front: each
+ * handler's histogram is looked up once, when its route is wrapped by timed(), rather than per request, and a
+ * histogram finds its bucket by scanning a long[] of bounds. Nothing is allocated and nothing is locked, and
+ * threads recording at the same time mostly update different cells of the adders. All of the formatting (and the
+ * reading of the JVM's MXBeans) is left to scrape(), which only runs when /metrics is asked for.
+ *
+ * The histograms are cumulative, like Prometheus expects, so rates and percentiles are worked out on the
+ * Prometheus side, e.g. rate(fibonacci_request_duration_seconds_count[1m]) for the request rate per handler.
+ */
+final class ServiceMetrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // 0.5ms to 10s, in nanoseconds
+    private static final long[] LATENCY_BOUNDS = {
+            500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    // 64 bits (a long) to 64M bits (8MB), in powers of four
+    private static final long[] SIZE_BOUNDS = {
+            1L << 6, 1L << 8, 1L << 10, 1L << 12, 1L << 14, 1L << 16, 1L << 18, 1L << 20, 1L << 22, 1L << 24, 1L << 26
+    };
+
+    // sorted, so the output is in a stable order
+    private final Map<String, Histogram> requestLatencies = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> requestErrors = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<CacheStats>> caches = new ConcurrentSkipListMap<>();
+    private final Histogram computeTimes = new Histogram(LATENCY_BOUNDS);
+    private final Histogram resultSizes = new Histogram(SIZE_BOUNDS);
+    private final LongAdder shedRequests = new LongAdder();
+
+    // the server's request threads, once it has started
+    private volatile ThreadPool threadPool;
+
+    /**
+     * Returns a route that runs the handler and records how long it took, and whether it failed, under the
+     * handler's class name. The time is up to the handler returning, so it doesn't include Spark writing out a
+     * returned body (streamed bodies are written by the handler, so they are included).
+     */
+    Route timed(Route handler) {
+        String name = handler.getClass().getSimpleName();
+        Histogram latency = requestLatencies.computeIfAbsent(name, ignored -> new Histogram(LATENCY_BOUNDS));
+        LongAdder errors = requestErrors.computeIfAbsent(name, ignored -> new LongAdder());
+
+        return (request, response) -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object result = handler.handle(request, response);
+                failed = false;
+                return result;
+            } finally {
+                latency.record(System.nanoTime() - start);
+                if (failed) {
+                    // including a halt(), e.g. for a request that asks for too many numbers
+                    errors.increment();
+                }
+            }
+        };
+    }
+
+    /**
+     * Reports a cache's hit, miss and eviction counts, read from the supplier at each scrape. Registering another
+     * cache under the same name replaces the first one.
+     */
+    void registerCache(String name, Supplier<CacheStats> stats) {
+        caches.put(name, stats);
+    }
+
+    /**
+     * Reports the size of the server's request thread pool, replacing the pool of any earlier server.
+     */
+    void registerThreadPool(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    void recordShed() {
+        shedRequests.increment();
+    }
+
+    void recordComputeTime(long nanos) {
+        computeTimes.record(nanos);
+    }
+
+    void recordResultSize(long bits) {
+        resultSizes.record(bits);
+    }
+
+    /**
+     * Returns all of the metrics, in the Prometheus text exposition format.
+     */
+    String scrape() {
+        StringBuilder out = new StringBuilder(8 * 1024);
+
+        header(out, "fibonacci_request_duration_seconds", "Time spent handling requests, by handler.", "histogram");
+        requestLatencies.forEach((handler, latency) ->
+                latency.writeTo(out, "fibonacci_request_duration_seconds", "handler=\"" + handler + "\"", NANOS_PER_SECOND));
+
+        header(out, "fibonacci_request_errors_total", "Requests that failed or were halted, by handler.", "counter");
+        requestErrors.forEach((handler, errors) ->
+                sample(out, "fibonacci_request_errors_total", "handler=\"" + handler + "\"", errors.sum()));
+
+        header(out, "fibonacci_requests_shed_total", "Requests turned away with a 503 because of overload.", "counter");
+        sample(out, "fibonacci_requests_shed_total", "", shedRequests.sum());
+
+        header(out, "fibonacci_compute_duration_seconds", "Time spent computing numbers.", "histogram");
+        computeTimes.writeTo(out, "fibonacci_compute_duration_seconds", "", NANOS_PER_SECOND);
+
+        header(out, "fibonacci_result_bits", "Size of the computed numbers, in bits.", "histogram");
+        resultSizes.writeTo(out, "fibonacci_result_bits", "", 1);
+
+        writeCaches(out);
+        writeThreadPool(out);
+        writeJvm(out);
+        return out.toString();
+    }
+
+    private void writeCaches(StringBuilder out) {
+        // each cache's stats are read once, so its hits and misses come from the same moment
+        Map<String, CacheStats> stats = new TreeMap<>();
+        caches.forEach((name, supplier) -> stats.put(name, supplier.get()));
+
+        header(out, "fibonacci_cache_hits_total", "Cache lookups that found a value.", "counter");
+        stats.forEach((name, cache) -> sample(out, "fibonacci_cache_hits_total", cacheLabel(name), cache.hitCount()));
+        header(out, "fibonacci_cache_misses_total", "Cache lookups that had to compute a value.", "counter");
+        stats.forEach((name, cache) -> sample(out, "fibonacci_cache_misses_total", cacheLabel(name), cache.missCount()));
+        header(out, "fibonacci_cache_evictions_total", "Values evicted from the cache.", "counter");
+        stats.forEach((name, cache) -> sample(out, "fibonacci_cache_evictions_total", cacheLabel(name), cache.evictionCount()));
+    }
+
+    private void writeThreadPool(StringBuilder out) {
+        ThreadPool pool = threadPool;
+        if (pool == null) {
+            return;
+        }
+        header(out, "fibonacci_server_threads", "Request threads (running tasks, for virtual threads).", "gauge");
+        sample(out, "fibonacci_server_threads", "", pool.getThreads());
+        header(out, "fibonacci_server_idle_threads", "Request threads waiting for work.", "gauge");
+        sample(out, "fibonacci_server_idle_threads", "", pool.getIdleThreads());
+        if (pool instanceof QueuedThreadPool) {
+            header(out, "fibonacci_server_queued_requests", "Requests waiting for a request thread.", "gauge");
+            sample(out, "fibonacci_server_queued_requests", "", ((QueuedThreadPool) pool).getQueueSize());
+        }
+    }
+
+    private static void writeJvm(StringBuilder out) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        header(out, "jvm_threads_current", "Live threads, including daemon threads.", "gauge");
+        sample(out, "jvm_threads_current", "", threads.getThreadCount());
+        header(out, "jvm_threads_daemon", "Live daemon threads.", "gauge");
+        sample(out, "jvm_threads_daemon", "", threads.getDaemonThreadCount());
+        header(out, "jvm_threads_peak", "Most live threads since the JVM started.", "gauge");
+        sample(out, "jvm_threads_peak", "", threads.getPeakThreadCount());
+
+        // the caches load on the common pool by default
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        header(out, "jvm_forkjoin_common_pool_threads", "Threads in the common ForkJoinPool.", "gauge");
+        sample(out, "jvm_forkjoin_common_pool_threads", "", pool.getPoolSize());
+        header(out, "jvm_forkjoin_common_pool_active_threads", "Threads in the common pool running tasks.", "gauge");
+        sample(out, "jvm_forkjoin_common_pool_active_threads", "", pool.getActiveThreadCount());
+        header(out, "jvm_forkjoin_common_pool_queued_tasks", "Tasks waiting in the common pool's queues.", "gauge");
+        sample(out, "jvm_forkjoin_common_pool_queued_tasks", "", pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount());
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        header(out, "jvm_memory_heap_used_bytes", "Heap in use.", "gauge");
+        sample(out, "jvm_memory_heap_used_bytes", "", heap.getUsed());
+        header(out, "jvm_memory_heap_committed_bytes", "Heap committed by the JVM.", "gauge");
+        sample(out, "jvm_memory_heap_committed_bytes", "", heap.getCommitted());
+        header(out, "jvm_memory_heap_max_bytes", "Most heap the JVM can use, or -1 if unbounded.", "gauge");
+        sample(out, "jvm_memory_heap_max_bytes", "", heap.getMax());
+
+        header(out, "jvm_gc_collections_total", "Garbage collections, by collector.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collections_total", gcLabel(gc), gc.getCollectionCount());
+        }
+        header(out, "jvm_gc_collection_seconds_total", "Time spent in garbage collection, by collector.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(out, "jvm_gc_collection_seconds_total", gcLabel(gc), gc.getCollectionTime() / 1000.0);
+        }
+    }
+
+    private static String cacheLabel(String name) {
+        return "cache=\"" + name + "\"";
+    }
+
+    private static String gcLabel(GarbageCollectorMXBean gc) {
+        return "gc=\"" + gc.getName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        sampleName(out, name, labels).append(value).append('\n');
+    }
+
+    private static StringBuilder sampleName(StringBuilder out, String name, String labels) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        return out.append(' ');
+    }
+
+    /**
+     * Counts of values falling into fixed buckets, plus their sum. Recording is a scan of the bounds and two
+     * LongAdder increments.
+     */
+    static final class Histogram {
+        private final long[] bounds;
+        // one per bound, plus one for everything above the last bound
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Writes the _bucket, _sum and _count samples, with the bounds and sum divided by scale (e.g. to turn
+         * nanoseconds into seconds). The counts are read one at a time, so a scrape during heavy traffic can be a
+         * request or two out between buckets.
+         */
+        void writeTo(StringBuilder out, String name, String labels, double scale) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + format(bounds[i] / scale) + "\"", cumulative);
+            }
+            cumulative += counts[bounds.length].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sum.sum() / scale);
+            sample(out, name + "_count", labels, cumulative);
+        }
+
+        private static String format(double bound) {
+            return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+        }
+    }
+}
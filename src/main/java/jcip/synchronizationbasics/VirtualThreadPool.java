@@ -0,0 +1,103 @@
+package jcip.synchronizationbasics;
+
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Jetty thread pool that runs every task on a new virtual thread, so a request that blocks (on a slow cache
+ * load, say) parks cheaply instead of holding one of a few hundred platform threads.
+ *
+ * The project is compiled for Java 8, so Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection;
+ * isSupported() says whether this JVM can actually use it. JDK 19 and 20 have the method but throw from it without
+ * --enable-preview, so I call it once up front rather than trusting that it's there. There's no queue and no limit
+ * on threads, so to bound the work in flight, pair this with ServerConfig's maxConcurrentRequests. Jetty's acceptor
+ * and selector loops also end up on virtual threads, and pin their carrier threads while they block in select(), so
+ * this suits machines with more than a couple of cores.
+ */
+final class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadPool.class);
+    private static final Method NEW_EXECUTOR = findFactory();
+
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    VirtualThreadPool() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("virtual threads aren't supported by this JVM");
+        }
+        try {
+            this.executor = (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            throw new IllegalStateException("couldn't create a virtual thread executor", ex);
+        }
+    }
+
+    static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            running.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        // a virtual thread only exists while it has a task
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        executor.shutdown();
+    }
+
+    private static Method findFactory() {
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+        try {
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return factory;
+        } catch (Exception | LinkageError ex) {
+            Throwable cause = ex instanceof InvocationTargetException ? ex.getCause() : ex;
+            log.info("virtual threads are present but unusable on this JVM: {}", cause.toString());
+            return null;
+        }
+    }
+}
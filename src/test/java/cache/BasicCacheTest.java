@@ -9,18 +9,32 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
+import static cache.TestThreads.runOnMultipleThreads;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.atMostOnce;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -64,6 +78,15 @@ class BasicCacheTest {
                 assertThat(result, is(42));
             }
 
+            @Test
+            void whenCheckedGetCalled_andItemNotCached_returnsValue() throws Exception {
+                when(mockFunction.apply("A")).thenReturn(42);
+
+                Integer result = numberCache.get("A");
+
+                assertThat(result, is(42));
+            }
+
             @Test
             void whenGetCalled_andItemIsCached_doesNotCallFunction() {
                 when(mockFunction.apply("A")).thenReturn(42);
@@ -133,36 +156,242 @@ class BasicCacheTest {
                 verify(mockFunction, atMostOnce()).apply("A");
             }
         }
+    }
 
-        /**
-         * Execute a runnable on a given number of threads. The purpose of this function is generally to
-         * attempt to focus work on a single point of code, to generate a race condition or deadlock.
-         */
-        private void runOnMultipleThreads(int numOfThreads, Runnable runnable) {
-            // Use this latch to ensure threads don't get a head start
-            CountDownLatch startThreadLatch = new CountDownLatch(1);
-
-            // create N threads; all wait on the latch (so they start at the same time), and then execute the runnable
-            List<CompletableFuture<Void>> completableFutureList = new ArrayList<>();
-            for (int i = 0; i < numOfThreads; i++) {
-                completableFutureList.add(CompletableFuture.runAsync(() -> {
-                    try {
-                        startThreadLatch.await();
-                    } catch (InterruptedException interrupt) {
-                        // we can't throw a checked exception from a lambda; so we restore the
-                        // interrupt status on the current thread (Java Concurrency in Practice, ch 5.4)
-                        Thread.currentThread().interrupt();
-                    }
+    @Nested
+    @DisplayName("GetAll")
+    class GetAll {
+
+        @Mock
+        Function<String, Integer> mockFunction;
+
+        @Mock
+        Function<Set<String>, Map<String, Integer>> mockBatchFunction;
+
+        Cache<String, Integer> numberCache;
+
+        @BeforeEach
+        void setup() {
+            numberCache = new BasicCache<>(mockFunction, mockBatchFunction);
+        }
+
+        @Test
+        void whenItemsNotCached_callsBatchFunctionOnce() throws Exception {
+            when(mockBatchFunction.apply(setOf("A", "B", "C"))).thenReturn(mapOf("A", 1, "B", 2, "C", 3));
+
+            Map<String, Integer> result = numberCache.getAll(Arrays.asList("A", "B", "C"));
 
-                    runnable.run();
-                }));
+            assertThat(result, is(mapOf("A", 1, "B", 2, "C", 3)));
+            verify(mockBatchFunction, times(1)).apply(any());
+            verifyZeroInteractions(mockFunction);
+        }
+
+        @Test
+        void whenSomeItemsCached_onlyLoadsMissingItems() throws Exception {
+            when(mockFunction.apply("A")).thenReturn(1);
+            when(mockBatchFunction.apply(setOf("B"))).thenReturn(mapOf("B", 2));
+
+            numberCache.getUnchecked("A");
+            Map<String, Integer> result = numberCache.getAll(Arrays.asList("A", "B"));
+
+            assertThat(result, is(mapOf("A", 1, "B", 2)));
+        }
+
+        @Test
+        void whenBatchFunctionOmitsKey_throwsExecutionException() {
+            when(mockBatchFunction.apply(setOf("A", "B"))).thenReturn(mapOf("A", 1));
+
+            assertThrows(ExecutionException.class, () -> numberCache.getAll(Arrays.asList("A", "B")));
+        }
+
+        @Test
+        void whenNoBatchFunction_loadsEachItem() throws Exception {
+            when(mockFunction.apply("A")).thenReturn(1);
+            when(mockFunction.apply("B")).thenReturn(2);
+            Cache<String, Integer> cache = new BasicCache<>(mockFunction);
+
+            Map<String, Integer> result = cache.getAll(Arrays.asList("A", "B", "A"));
+
+            assertThat(result, is(mapOf("A", 1, "B", 2)));
+        }
+
+        private Set<String> setOf(String... keys) {
+            return new HashSet<>(Arrays.asList(keys));
+        }
+
+        private Map<String, Integer> mapOf(Object... keysAndValues) {
+            Map<String, Integer> map = new LinkedHashMap<>();
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                map.put((String) keysAndValues[i], (Integer) keysAndValues[i + 1]);
             }
+            return map;
+        }
+    }
+
+    @Nested
+    @DisplayName("Async")
+    class Async {
+
+        @Test
+        void whenGetCalled_returnsFutureWithoutBlocking() throws Exception {
+            CountDownLatch finishLoad = new CountDownLatch(1);
+            AsyncCache<String, Integer> cache = new BasicCache<String, Integer>(key -> {
+                try {
+                    finishLoad.await();
+                } catch (InterruptedException interrupt) {
+                    Thread.currentThread().interrupt();
+                }
+                return 42;
+            }).async();
+
+            CompletableFuture<Integer> future = cache.get("A");
+            assertThat(future.isDone(), is(false));
+
+            finishLoad.countDown();
+            assertThat(future.get(), is(42));
+        }
+
+        @Test
+        void whenExecutorProvided_runsLoadsOnIt() throws Exception {
+            AtomicInteger executed = new AtomicInteger();
+            Executor countingExecutor = runnable -> {
+                executed.incrementAndGet();
+                runnable.run();
+            };
+            AsyncCache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .executor(countingExecutor)
+                    .buildAsync(String::length);
+
+            assertThat(cache.get("A").get(), is(1));
+            assertThat(cache.get("A").get(), is(1));
+            assertThat(cache.synchronous().get("BB"), is(2));
+            assertThat(executed.get(), is(2));
+        }
+
+        @Test
+        void whenGetAllCalled_combinesValues() throws Exception {
+            AsyncCache<String, Integer> cache = new BasicCache<String, Integer>(String::length).async();
+
+            Map<String, Integer> result = cache.getAll(Arrays.asList("A", "BB")).get();
+
+            assertThat(result.values(), contains(1, 2));
+        }
+    }
+
+    @Nested
+    @DisplayName("Failure Policy")
+    class FailurePolicies {
+
+        // runs loads on the calling thread, so the failure policy has been applied by the time get() returns
+        Executor directExecutor = Runnable::run;
+
+        AtomicLong time = new AtomicLong();
+
+        @Mock
+        Function<String, Integer> mockFunction;
+
+        @Test
+        void whenRetainPolicy_rethrowsFirstFailure() {
+            when(mockFunction.apply("A")).thenThrow(new IllegalStateException("down"));
+            Cache<String, Integer> cache = new BasicCache<>(mockFunction);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+
+            verify(mockFunction, times(1)).apply("A");
+        }
+
+        @Test
+        void whenEvictPolicy_retriesOnNextCall() {
+            when(mockFunction.apply("A")).thenThrow(new IllegalStateException("down")).thenReturn(42);
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .failurePolicy(FailurePolicy.evict())
+                    .executor(directExecutor)
+                    .build(mockFunction);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+
+            assertThat(cache.getUnchecked("A"), is(42));
+        }
+
+        @Test
+        void whenNegativeCachePolicy_retriesAfterBackoff() {
+            when(mockFunction.apply("A"))
+                    .thenThrow(new IllegalStateException("down"))
+                    .thenThrow(new IllegalStateException("still down"))
+                    .thenReturn(42);
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .failurePolicy(FailurePolicy.negativeCache(1, 10, TimeUnit.SECONDS))
+                    .ticker(time::get)
+                    .executor(directExecutor)
+                    .build(mockFunction);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            verify(mockFunction, times(1)).apply("A");
+
+            // the first failure is cached for 1 second, the second for 2 seconds
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            verify(mockFunction, times(2)).apply("A");
+
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThat(cache.getUnchecked("A"), is(42));
+        }
+
+        @Test
+        void whenNegativeCachePolicy_nullResultIsRetried() {
+            when(mockFunction.apply("A")).thenReturn(null).thenReturn(42);
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .failurePolicy(FailurePolicy.negativeCache(1, 10, TimeUnit.SECONDS))
+                    .ticker(time::get)
+                    .executor(directExecutor)
+                    .build(mockFunction);
+
+            assertThat(cache.getUnchecked("A"), is(nullValue()));
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+            assertThat(cache.getUnchecked("A"), is(42));
+        }
+    }
+
+    @Nested
+    @DisplayName("Stats")
+    class Stats {
+
+        @Test
+        void whenStatsRecorded_countsHitsMissesAndLoads() {
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .recordStats()
+                    .build(key -> {
+                        if (key.isEmpty()) {
+                            throw new IllegalArgumentException("empty key");
+                        }
+                        return key.length();
+                    });
+
+            cache.getUnchecked("A");
+            cache.getUnchecked("A");
+            cache.getUnchecked("BB");
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked(""));
+
+            CacheStats stats = cache.stats();
+            assertThat(stats.hitCount(), is(1L));
+            assertThat(stats.missCount(), is(3L));
+            assertThat(stats.loadSuccessCount(), is(2L));
+            assertThat(stats.loadFailureCount(), is(1L));
+            assertThat(stats.inFlightLoads(), is(0L));
+        }
+
+        @Test
+        void whenStatsNotRecorded_returnsEmptyStats() {
+            Cache<String, Integer> cache = new BasicCache<>(String::length);
 
-            // start threads
-            startThreadLatch.countDown();
+            cache.getUnchecked("A");
 
-            // block until all threads are complete
-            CompletableFuture.allOf(completableFutureList.toArray(new CompletableFuture[0])).join();
+            assertThat(cache.stats().requestCount(), is(0L));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,447 @@
+package cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static cache.TestThreads.runOnMultipleThreads;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.atMostOnce;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class BoundedCacheTest {
+
+    private static final int NUMBER_OF_TEST_THREADS = 5;
+
+    // runs loads on the calling thread, so their callbacks have run by the time get() returns
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    @Nested
+    @DisplayName("GetUnchecked")
+    class GetUnchecked {
+
+        @Mock
+        Function<String, Integer> mockFunction;
+
+        Cache<String, Integer> numberCache;
+
+        @BeforeEach
+        void setup() {
+            numberCache = new BoundedCache<>(mockFunction, 100);
+        }
+
+        @Test
+        void whenGetCalled_andItemNotCached_returnsValue() {
+            when(mockFunction.apply("A")).thenReturn(42);
+
+            Integer result = numberCache.getUnchecked("A");
+
+            assertThat(result, is(42));
+        }
+
+        @Test
+        void whenGetCalled_andItemIsCached_doesNotCallFunction() {
+            when(mockFunction.apply("A")).thenReturn(42);
+
+            numberCache.getUnchecked("A");
+            Integer result = numberCache.getUnchecked("A");
+
+            assertThat(result, is(42));
+            verify(mockFunction, atMostOnce()).apply("A");
+        }
+
+        @RepeatedTest(3)
+        void whenCalledByMultipleThreads_callsFunctionOnce() {
+            when(mockFunction.apply("A")).thenReturn(1);
+
+            runOnMultipleThreads(NUMBER_OF_TEST_THREADS, () -> {
+                for (int i = 0; i < 10; i++) {
+                    numberCache.getUnchecked("A");
+                }
+            });
+
+            verify(mockFunction, atMostOnce()).apply("A");
+        }
+
+        @Test
+        void whenProducerReadsTheSameCache_onTheCallingThread_doesNotDeadlock() {
+            // 0 and 16 land in the same bin of the map's initial table, so loading 16 inside the compute() for 0
+            // would be a recursive update of a locked bin
+            AtomicReference<Cache<Integer, Integer>> self = new AtomicReference<>();
+            Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                    .maximumSize(100)
+                    .executor(DIRECT_EXECUTOR)
+                    .build(key -> (key == 0) ? self.get().getUnchecked(16) + 1 : key);
+            self.set(cache);
+
+            assertThat(cache.getUnchecked(0), is(17));
+            assertThat(cache.getUnchecked(16), is(16));
+        }
+    }
+
+    @Nested
+    @DisplayName("GetAll")
+    class GetAll {
+
+        @Test
+        void whenItemsNotCached_loadsThemInOneBatch() throws Exception {
+            AtomicInteger batches = new AtomicInteger();
+            Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                    .maximumSize(100)
+                    .build(key -> -key, keys -> {
+                        batches.incrementAndGet();
+                        Map<Integer, Integer> values = new HashMap<>();
+                        keys.forEach(key -> values.put(key, key));
+                        return values;
+                    });
+
+            cache.getUnchecked(1);
+            Map<Integer, Integer> result = cache.getAll(Arrays.asList(1, 2, 3));
+
+            assertThat(result.values(), contains(-1, 2, 3));
+            assertThat(batches.get(), is(1));
+        }
+    }
+
+    @Nested
+    @DisplayName("Eviction")
+    class Eviction {
+
+        @Test
+        void whenMoreKeysThanMaximumSize_sizeStaysBounded() {
+            BoundedCache<Integer, Integer> cache = new BoundedCache<>(k -> k, 50);
+
+            for (int i = 0; i < 1000; i++) {
+                cache.getUnchecked(i);
+            }
+
+            assertThat(cache.estimatedSize(), lessThanOrEqualTo(50L));
+        }
+
+        @Test
+        void whenKeyIsStillLoading_itIsNotEvicted_andItsProducerIsNotCalledAgain() throws Exception {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+            ExecutorService executor = Executors.newCachedThreadPool();
+            try {
+                Function<String, String> producer = key -> {
+                    calls.computeIfAbsent(key, ignored -> new AtomicInteger()).incrementAndGet();
+                    if (key.equals("A")) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return key;
+                };
+                BoundedCache<String, String> cache = (BoundedCache<String, String>) CacheBuilder.<String, String>newBuilder()
+                        .maximumSize(1)
+                        .executor(executor)
+                        .build(producer);
+
+                // with a single entry allowed, B's arrival would evict A if A were in the policy while still loading
+                CompletableFuture<String> first = cache.async().get("A");
+                started.await();
+                cache.getUnchecked("B");
+                CompletableFuture<String> second = cache.async().get("A");
+
+                assertThat(calls.get("A").get(), is(1));
+                release.countDown();
+                assertThat(first.get(5, TimeUnit.SECONDS), is("A"));
+                assertThat(second.get(5, TimeUnit.SECONDS), is("A"));
+                assertThat(calls.get("A").get(), is(1));
+            } finally {
+                release.countDown();
+                executor.shutdownNow();
+            }
+        }
+
+        @Test
+        void whenMoreKeysThanMaximumSize_onMultipleThreads_sizeStaysBounded() {
+            BoundedCache<Integer, Integer> cache = new BoundedCache<>(k -> k, 50);
+            AtomicInteger nextKey = new AtomicInteger();
+
+            runOnMultipleThreads(NUMBER_OF_TEST_THREADS, () -> {
+                for (int i = 0; i < 1000; i++) {
+                    int key = nextKey.getAndIncrement();
+                    assertThat(cache.getUnchecked(key), is(key));
+                }
+            });
+
+            assertThat(cache.estimatedSize(), lessThanOrEqualTo(50L));
+        }
+
+        @Test
+        void whenStatsRecorded_countsEvictions() {
+            Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                    .maximumSize(10)
+                    .recordStats()
+                    .build(k -> k);
+
+            for (int i = 0; i < 100; i++) {
+                cache.getUnchecked(i);
+            }
+
+            assertThat(cache.stats().evictionCount(), is(90L));
+            assertThat(cache.stats().missCount(), is(100L));
+        }
+
+        @Test
+        void whenWeigherProvided_totalWeightStaysBounded() {
+            BoundedCache<Integer, String> cache = new BoundedCache<>(CacheBuilder.<Integer, String>newBuilder()
+                    .maximumWeight(100, (key, value) -> value.length())
+                    .executor(DIRECT_EXECUTOR), k -> new String(new char[10]), null);
+
+            for (int i = 0; i < 100; i++) {
+                cache.getUnchecked(i);
+            }
+            cache.cleanUp();
+
+            assertThat(cache.estimatedSize(), lessThanOrEqualTo(10L));
+        }
+
+        @Test
+        void whenScanOfOneHitWonders_hotKeysStayCached() {
+            ConcurrentHashMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+            BoundedCache<Integer, Integer> cache = new BoundedCache<>(k -> {
+                calls.computeIfAbsent(k, ignored -> new AtomicInteger()).incrementAndGet();
+                return k;
+            }, 100);
+
+            // make keys 0-49 popular, then read 10,000 keys that are never seen again
+            for (int round = 0; round < 20; round++) {
+                for (int hot = 0; hot < 50; hot++) {
+                    cache.getUnchecked(hot);
+                }
+                cache.cleanUp();
+            }
+            for (int cold = 1000; cold < 11000; cold++) {
+                cache.getUnchecked(cold);
+            }
+            for (int hot = 0; hot < 50; hot++) {
+                cache.getUnchecked(hot);
+            }
+
+            int reloadedHotKeys = 0;
+            for (int hot = 0; hot < 50; hot++) {
+                if (calls.get(hot).get() > 1) {
+                    reloadedHotKeys++;
+                }
+            }
+            assertThat(reloadedHotKeys, lessThanOrEqualTo(5));
+            assertThat(calls.size(), greaterThanOrEqualTo(10050));
+        }
+    }
+
+    @Nested
+    @DisplayName("Expiry")
+    class Expiry {
+
+        AtomicLong time = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, Integer> countingFunction = key -> loads.incrementAndGet();
+
+        @Test
+        void whenExpireAfterWriteElapsed_reloadsValue() {
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .expireAfterWrite(1, TimeUnit.MINUTES)
+                    .ticker(time::get)
+                    .build(countingFunction);
+
+            assertThat(cache.getUnchecked("A"), is(1));
+            time.addAndGet(TimeUnit.SECONDS.toNanos(59));
+            assertThat(cache.getUnchecked("A"), is(1));
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThat(cache.getUnchecked("A"), is(2));
+        }
+
+        @Test
+        void whenReadBeforeExpireAfterAccessElapsed_keepsValue() {
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .expireAfterAccess(1, TimeUnit.MINUTES)
+                    .ticker(time::get)
+                    .build(countingFunction);
+
+            cache.getUnchecked("A");
+            for (int i = 0; i < 5; i++) {
+                time.addAndGet(TimeUnit.SECONDS.toNanos(30));
+                assertThat(cache.getUnchecked("A"), is(1));
+            }
+            time.addAndGet(TimeUnit.MINUTES.toNanos(1));
+            assertThat(cache.getUnchecked("A"), is(2));
+        }
+
+        @Test
+        void whenExpiredEntriesNotRead_theyAreSweptOut() {
+            BoundedCache<Integer, Integer> cache = new BoundedCache<>(CacheBuilder.<Integer, Integer>newBuilder()
+                    .expireAfterWrite(1, TimeUnit.MINUTES)
+                    .ticker(time::get)
+                    .executor(DIRECT_EXECUTOR), key -> key, null);
+
+            for (int i = 0; i < 100; i++) {
+                cache.getUnchecked(i);
+            }
+            time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+            cache.cleanUp();
+
+            assertThat(cache.estimatedSize(), is(0L));
+        }
+
+        @Test
+        void whenRefreshAfterWriteElapsed_servesStaleValueWhileReloading() throws Exception {
+            CountDownLatch reloadStarted = new CountDownLatch(1);
+            CountDownLatch finishReload = new CountDownLatch(1);
+            ExecutorService loader = Executors.newSingleThreadExecutor();
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .refreshAfterWrite(1, TimeUnit.MINUTES)
+                    .ticker(time::get)
+                    .executor(loader)
+                    .build(key -> {
+                        int load = loads.incrementAndGet();
+                        if (load > 1) {
+                            reloadStarted.countDown();
+                            await(finishReload);
+                        }
+                        return load;
+                    });
+
+            assertThat(cache.getUnchecked("A"), is(1));
+            time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+
+            // triggers the reload, but doesn't wait for it
+            assertThat(cache.getUnchecked("A"), is(1));
+            reloadStarted.await();
+            assertThat(cache.getUnchecked("A"), is(1));
+            assertThat(loads.get(), is(2));
+
+            finishReload.countDown();
+            loader.shutdown();
+            loader.awaitTermination(1, TimeUnit.SECONDS);
+            assertThat(cache.getUnchecked("A"), is(2));
+        }
+
+        private void await(CountDownLatch latch) {
+            try {
+                latch.await();
+            } catch (InterruptedException interrupt) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("FailurePolicies")
+    class FailurePolicies {
+
+        AtomicLong time = new AtomicLong();
+
+        @Mock
+        Function<String, Integer> mockFunction;
+
+        @Test
+        void whenRetainPolicy_rethrowsFirstFailure() {
+            when(mockFunction.apply("A")).thenThrow(new IllegalStateException("down"));
+            Cache<String, Integer> cache = new BoundedCache<>(mockFunction, 100);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+
+            verify(mockFunction, times(1)).apply("A");
+        }
+
+        @Test
+        void whenEvictPolicy_failedEntryIsRemoved_andRetriedOnNextCall() {
+            when(mockFunction.apply("A")).thenThrow(new IllegalStateException("down")).thenReturn(42);
+            BoundedCache<String, Integer> cache = new BoundedCache<>(CacheBuilder.<String, Integer>newBuilder()
+                    .maximumSize(100)
+                    .failurePolicy(FailurePolicy.evict())
+                    .executor(DIRECT_EXECUTOR), mockFunction, null);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            assertThat(cache.estimatedSize(), is(0L));
+
+            assertThat(cache.getUnchecked("A"), is(42));
+            assertThat(cache.estimatedSize(), is(1L));
+        }
+
+        @Test
+        void whenNegativeCachePolicy_failureExpiresAtRetryTime_andBackoffDoubles() {
+            when(mockFunction.apply("A"))
+                    .thenThrow(new IllegalStateException("down"))
+                    .thenThrow(new IllegalStateException("still down"))
+                    .thenReturn(42);
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .maximumSize(100)
+                    .failurePolicy(FailurePolicy.negativeCache(1, 10, TimeUnit.SECONDS))
+                    .ticker(time::get)
+                    .executor(DIRECT_EXECUTOR)
+                    .build(mockFunction);
+
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            verify(mockFunction, times(1)).apply("A");
+
+            // the first failure is cached for 1 second; the node replacing it carries the failure count over, so
+            // the second is cached for 2 seconds
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            verify(mockFunction, times(2)).apply("A");
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThrows(RuntimeException.class, () -> cache.getUnchecked("A"));
+            verify(mockFunction, times(2)).apply("A");
+
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertThat(cache.getUnchecked("A"), is(42));
+            verify(mockFunction, times(3)).apply("A");
+        }
+
+        @Test
+        void whenNegativeCachePolicy_nullResultIsRetried() {
+            when(mockFunction.apply("A")).thenReturn(null).thenReturn(42);
+            Cache<String, Integer> cache = CacheBuilder.<String, Integer>newBuilder()
+                    .maximumSize(100)
+                    .failurePolicy(FailurePolicy.negativeCache(1, 10, TimeUnit.SECONDS))
+                    .ticker(time::get)
+                    .executor(DIRECT_EXECUTOR)
+                    .build(mockFunction);
+
+            assertThat(cache.getUnchecked("A"), is(nullValue()));
+            time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+            assertThat(cache.getUnchecked("A"), is(42));
+        }
+    }
+}
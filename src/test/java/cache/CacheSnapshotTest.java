@@ -0,0 +1,131 @@
+package cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+class CacheSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void whenSnapshotWritten_newCacheIsWarmedWithoutCallingProducer() throws Exception {
+        Path file = directory.resolve("cache.snapshot");
+        CacheSnapshot<Integer, String> before = new CacheSnapshot<>(file, Codec.integers(), Codec.strings());
+        Cache<Integer, String> cache = new BasicCache<>(key -> "value-" + key);
+        for (int i = 0; i < 1000; i++) {
+            cache.getUnchecked(i);
+        }
+
+        assertThat(before.write(cache), is(1000));
+
+        AtomicInteger calls = new AtomicInteger();
+        CacheSnapshot<Integer, String> after = new CacheSnapshot<>(file, Codec.integers(), Codec.strings());
+        Cache<Integer, String> restarted = new BoundedCache<>(after.loadingFrom(key -> {
+            calls.incrementAndGet();
+            return "fresh-" + key;
+        }), 100);
+
+        assertThat(restarted.getUnchecked(500), is("value-500"));
+        assertThat(restarted.getUnchecked(5000), is("fresh-5000"));
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    void whenKeyIsLoadedAgain_producerIsCalledInsteadOfTheSnapshot() throws Exception {
+        Path file = directory.resolve("reload.snapshot");
+        Cache<Integer, String> cache = new BasicCache<>(key -> "old-" + key);
+        cache.getUnchecked(1);
+        cache.getUnchecked(2);
+        new CacheSnapshot<>(file, Codec.integers(), Codec.strings()).write(cache);
+
+        CacheSnapshot<Integer, String> snapshot = new CacheSnapshot<>(file, Codec.integers(), Codec.strings());
+        Function<Integer, String> producer = snapshot.loadingFrom(key -> "fresh-" + key);
+
+        // the second load of a key is a reload (after it expired, was evicted, or failed), so it gets a fresh value
+        assertThat(producer.apply(1), is("old-1"));
+        assertThat(producer.apply(1), is("fresh-1"));
+        assertThat(snapshot.read(2), is("old-2"));
+        assertThat(producer.apply(2), is("old-2"));
+        assertThat(producer.apply(2), is("fresh-2"));
+        assertThat(snapshot.read(2), is(nullValue()));
+    }
+
+    @Test
+    void whenValuesAreLargerThanTheWriteBuffer_theyRoundTrip() throws Exception {
+        Path file = directory.resolve("big.snapshot");
+        BigInteger big = BigInteger.ONE.shiftLeft(1_000_000).subtract(BigInteger.TEN);
+        Cache<Integer, BigInteger> cache = new BasicCache<>(key -> key == 1 ? big : BigInteger.valueOf(key));
+        cache.getUnchecked(1);
+        cache.getUnchecked(2);
+
+        new CacheSnapshot<>(file, Codec.integers(), Codec.bigIntegers()).write(cache);
+        CacheSnapshot<Integer, BigInteger> snapshot = new CacheSnapshot<>(file, Codec.integers(), Codec.bigIntegers());
+
+        assertThat(snapshot.read(1), is(big));
+        assertThat(snapshot.read(2), is(BigInteger.valueOf(2)));
+    }
+
+    @Test
+    void whenFailedOrMissingLoads_theyAreNotWritten() throws Exception {
+        Path file = directory.resolve("partial.snapshot");
+        Function<Integer, String> producer = key -> {
+            if (key == 2) {
+                throw new IllegalStateException("boom");
+            }
+            return key == 3 ? null : "value-" + key;
+        };
+        Cache<Integer, String> cache = CacheBuilder.<Integer, String>newBuilder()
+                .executor(Runnable::run)
+                .build(producer);
+        cache.getUnchecked(1);
+        try {
+            cache.getUnchecked(2);
+        } catch (RuntimeException expected) {
+            // the failure is cached, but shouldn't be saved
+        }
+        cache.getUnchecked(3);
+
+        assertThat(new CacheSnapshot<>(file, Codec.integers(), Codec.strings()).write(cache), is(1));
+    }
+
+    @Test
+    void whenNoSnapshotFile_readsNothing() {
+        CacheSnapshot<Integer, String> snapshot =
+                new CacheSnapshot<>(directory.resolve("missing"), Codec.integers(), Codec.strings());
+
+        assertThat(snapshot.read(1), is(nullValue()));
+    }
+
+    @Test
+    void whenFileIsNotASnapshot_readsNothing() throws Exception {
+        Path file = directory.resolve("garbage");
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+        CacheSnapshot<Integer, String> snapshot = new CacheSnapshot<>(file, Codec.integers(), Codec.strings());
+
+        assertThat(snapshot.read(1), is(nullValue()));
+    }
+
+    @Test
+    void whenFileIsTooLargeToMap_readsNothing() throws Exception {
+        Path file = directory.resolve("huge");
+        try (RandomAccessFile huge = new RandomAccessFile(file.toFile(), "rw")) {
+            // sparse, so it doesn't actually take up the disk space
+            huge.setLength(Integer.MAX_VALUE + 1L);
+        }
+        CacheSnapshot<Integer, String> snapshot = new CacheSnapshot<>(file, Codec.integers(), Codec.strings());
+
+        assertThat(snapshot.read(1), is(nullValue()));
+    }
+}
@@ -0,0 +1,405 @@
+package cache;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs every Cache implementation through the same races, with StressHarness. Each implementation is a @Nested
+ * class extending the contracts it should meet, so a new cache variant gets all of these checks by adding one
+ * class here. The seed and number of rounds can be raised for a longer run, e.g.
+ * -Dstress.rounds=10000 -Dstress.seed=7.
+ */
+class CacheStressTest {
+    private static final int ACTORS = 4;
+    private static final int ROUNDS = Integer.getInteger("stress.rounds", 200);
+    private static final long SEED = Long.getLong("stress.seed", 42);
+
+    private static final int KEYS = 32;
+    private static final int MAXIMUM_SIZE = 16;
+    // well above the number of keys, so nothing is evicted
+    private static final int NEVER_EVICTED = 1024;
+    private static final int READS_PER_ACTOR = 200;
+    private static final long EXPIRY_NANOS = 100;
+
+    /**
+     * Checks every cache must pass: however the actors race, each key is produced once, and everyone gets the same,
+     * fully constructed value.
+     */
+    abstract class AtMostOnceContract {
+
+        /**
+         * Returns a builder set up for the implementation under test, bounded to maximumSize entries if it's a
+         * bounded implementation.
+         */
+        abstract CacheBuilder<Integer, Box> builder(long maximumSize);
+
+        Cache<Integer, Box> newCache(CacheBuilder<Integer, Box> builder, Producer producer) {
+            // loads run on the calling actor, so racing actors wait on each other's loads
+            return builder.executor(Runnable::run).recordStats().build(producer);
+        }
+
+        @Test
+        void whenActorsRaceForTheSameKeys_eachKeyIsProducedOnce_andEveryoneSeesTheSameValue() {
+            raceForTheSameKeys(producer -> newCache(builder(NEVER_EVICTED), producer));
+        }
+    }
+
+    /**
+     * Further checks for caches that evict and expire.
+     */
+    abstract class BoundedContract extends AtMostOnceContract {
+
+        @Test
+        void whenEvictingUnderContention_readsGetTheirOwnKey_andTheBoundHolds() {
+            new StressHarness<Round>(ACTORS, ROUNDS, SEED).run(
+                    () -> {
+                        Producer producer = new Producer();
+                        return new Round(newCache(builder(MAXIMUM_SIZE), producer), producer);
+                    },
+                    (round, actor, random) -> {
+                        for (int i = 0; i < READS_PER_ACTOR; i++) {
+                            int key = random.nextInt(KEYS * 2);
+                            Box box = round.cache.get(key);
+                            assertThat(box.key, is(key));
+                            assertThat(box.version, greaterThanOrEqualTo(1L));
+                        }
+                    },
+                    round -> {
+                        AtomicInteger entries = new AtomicInteger();
+                        round.cache.forEachLoaded((key, box) -> {
+                            entries.incrementAndGet();
+                            assertThat(box.key, is(key));
+                        });
+                        assertThat(entries.get(), lessThanOrEqualTo(MAXIMUM_SIZE));
+                        assertThat(round.producer.overlappingLoads.get(), is(0));
+                        // every load the producer ran was counted, and none was lost to a racing eviction
+                        assertThat(round.cache.stats().loadSuccessCount(), is((long) round.producer.totalCalls.get()));
+                    });
+        }
+
+        /**
+         * The other checks load on the calling actor, so a load is always done by the time its node could be
+         * evicted. Here the loads run on a pool, as they do by default, so nodes are evicted while other keys are
+         * still loading.
+         */
+        @Test
+        void whenLoadingOnAPool_underEviction_loadsOfAKeyNeverOverlap() {
+            ExecutorService pool = Executors.newFixedThreadPool(ACTORS);
+            try {
+                new StressHarness<Round>(ACTORS, ROUNDS, SEED).run(
+                        () -> {
+                            Producer producer = new Producer();
+                            Cache<Integer, Box> cache = builder(MAXIMUM_SIZE).executor(pool).recordStats().build(producer);
+                            return new Round(cache, producer);
+                        },
+                        (round, actor, random) -> {
+                            for (int i = 0; i < READS_PER_ACTOR; i++) {
+                                int key = random.nextInt(KEYS * 2);
+                                Box box = round.cache.get(key);
+                                assertThat(box.key, is(key));
+                                // no overlap so far, checked while the other actors' loads may still be running
+                                assertThat(round.producer.overlappingLoads.get(), is(0));
+                            }
+                        },
+                        round -> {
+                            assertThat(round.producer.overlappingLoads.get(), is(0));
+                            assertThat(round.cache.stats().loadSuccessCount(), is((long) round.producer.totalCalls.get()));
+                        });
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        @Test
+        void whenExpiringUnderContention_versionsNeverGoBackwards() {
+            new StressHarness<ExpiryRound>(ACTORS, ROUNDS, SEED).run(
+                    () -> {
+                        Producer producer = new Producer();
+                        FakeTicker ticker = new FakeTicker();
+                        CacheBuilder<Integer, Box> builder = builder(MAXIMUM_SIZE)
+                                .expireAfterWrite(EXPIRY_NANOS, TimeUnit.NANOSECONDS)
+                                .ticker(ticker);
+                        return new ExpiryRound(newCache(builder, producer), producer, ticker);
+                    },
+                    (round, actor, random) -> {
+                        long[] lastSeen = new long[KEYS];
+                        for (int i = 0; i < READS_PER_ACTOR; i++) {
+                            if (actor == 0) {
+                                // one actor is also the clock, expiring entries as the others read them
+                                round.ticker.advance(random.nextInt((int) EXPIRY_NANOS / 2));
+                            }
+                            int key = random.nextInt(KEYS / 4);
+                            Box box = round.cache.get(key);
+                            assertThat(box.key, is(key));
+                            assertThat("key=" + key, box.version, greaterThanOrEqualTo(lastSeen[key]));
+                            lastSeen[key] = box.version;
+                            if (random.nextInt(4) == 0) {
+                                Thread.yield();
+                            }
+                        }
+                    },
+                    round -> {
+                        assertThat(round.producer.overlappingLoads.get(), is(0));
+                        assertThat(round.cache.stats().loadSuccessCount(), is((long) round.producer.totalCalls.get()));
+                    });
+        }
+    }
+
+    @Nested
+    @DisplayName("BasicCache")
+    class Basic extends AtMostOnceContract {
+
+        @Override
+        CacheBuilder<Integer, Box> builder(long maximumSize) {
+            return CacheBuilder.newBuilder();
+        }
+    }
+
+    @Nested
+    @DisplayName("BoundedCache")
+    class Bounded extends BoundedContract {
+
+        @Override
+        CacheBuilder<Integer, Box> builder(long maximumSize) {
+            return CacheBuilder.<Integer, Box>newBuilder().maximumSize(maximumSize);
+        }
+    }
+
+    @Nested
+    @DisplayName("ShardedCache")
+    class Sharded extends BoundedContract {
+
+        @Override
+        CacheBuilder<Integer, Box> builder(long maximumSize) {
+            // the bound is split evenly, so the segments add up to exactly maximumSize
+            return CacheBuilder.<Integer, Box>newBuilder().segments(4).maximumSize(maximumSize);
+        }
+    }
+
+    @Nested
+    @DisplayName("TieredCache")
+    class Tiered extends AtMostOnceContract {
+
+        @Override
+        CacheBuilder<Integer, Box> builder(long maximumSize) {
+            return CacheBuilder.<Integer, Box>newBuilder().maximumSize(maximumSize).offHeap(1024 * 1024, Box.CODEC);
+        }
+    }
+
+    /**
+     * Not a real implementation, but a check of the harness itself: a cache that checks for a key and then loads
+     * it, without making the two atomic, has to fail the contract, or the harness isn't racing the actors at all.
+     */
+    @Nested
+    @DisplayName("Racy check-then-act cache")
+    class Racy {
+
+        @Test
+        void whenCacheIsNotAtomic_theHarnessReportsAFailure() {
+            AssertionError failure = assertThrows(AssertionError.class, () -> raceForTheSameKeys(RacyCache::new));
+
+            assertThat(failure.getMessage(), containsString("seed=" + SEED));
+        }
+    }
+
+    private static void raceForTheSameKeys(Function<Producer, Cache<Integer, Box>> newCache) {
+        new StressHarness<Round>(ACTORS, ROUNDS, SEED).run(
+                () -> {
+                    Producer producer = new Producer();
+                    return new Round(newCache.apply(producer), producer);
+                },
+                (round, actor, random) -> {
+                    for (int key : shuffledKeys(random)) {
+                        Box box = round.cache.get(key);
+                        // the fields aren't final, so seeing them set relies on the cache publishing safely
+                        assertThat(box.key, is(key));
+                        assertThat(box.version, is(1L));
+                        round.seen[actor][key] = box;
+                    }
+                },
+                round -> {
+                    for (int key = 0; key < KEYS; key++) {
+                        assertThat("key=" + key, round.producer.calls(key), is(1));
+                        for (int actor = 1; actor < ACTORS; actor++) {
+                            assertThat("key=" + key, round.seen[actor][key], sameInstance(round.seen[0][key]));
+                        }
+                    }
+                    assertThat(round.producer.overlappingLoads.get(), is(0));
+                    assertThat(round.cache.stats().loadSuccessCount(), is((long) KEYS));
+                });
+    }
+
+    private static List<Integer> shuffledKeys(Random random) {
+        List<Integer> keys = new ArrayList<>(KEYS);
+        for (int key = 0; key < KEYS; key++) {
+            keys.add(key);
+        }
+        Collections.shuffle(keys, random);
+        return keys;
+    }
+
+    /**
+     * A value with plain (non-final) fields, set one at a time, so a reader that gets it without a happens-before
+     * edge could see it half built.
+     */
+    static final class Box {
+        static final Codec<Box> CODEC = new Codec<Box>() {
+            @Override
+            public byte[] encode(Box box) {
+                return ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(box.key).putLong(box.version).array();
+            }
+
+            @Override
+            public Box decode(ByteBuffer buffer) {
+                Box box = new Box();
+                box.key = buffer.getInt();
+                box.version = buffer.getLong();
+                return box;
+            }
+        };
+
+        int key = -1;
+        long version;
+    }
+
+    /**
+     * Produces a Box per key with a version that counts up on every load of that key, and notices if two loads of
+     * the same key ever overlap.
+     */
+    static final class Producer implements Function<Integer, Box> {
+        final ConcurrentHashMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, AtomicInteger> loading = new ConcurrentHashMap<>();
+        final AtomicInteger totalCalls = new AtomicInteger();
+        final AtomicInteger overlappingLoads = new AtomicInteger();
+
+        @Override
+        public Box apply(Integer key) {
+            AtomicInteger inFlight = loading.computeIfAbsent(key, ignored -> new AtomicInteger());
+            if (inFlight.incrementAndGet() > 1) {
+                overlappingLoads.incrementAndGet();
+            }
+            try {
+                totalCalls.incrementAndGet();
+                int version = calls.computeIfAbsent(key, ignored -> new AtomicInteger()).incrementAndGet();
+
+                Box box = new Box();
+                box.key = key;
+                // widen the window in which another actor could observe the box half built
+                Thread.yield();
+                box.version = version;
+                return box;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        int calls(int key) {
+            AtomicInteger count = calls.get(key);
+            return (count == null) ? 0 : count.get();
+        }
+    }
+
+    /**
+     * Checks for the key, and loads it if it's missing, with nothing stopping two threads from both missing.
+     */
+    static final class RacyCache implements Cache<Integer, Box> {
+        private final Map<Integer, Box> values = new ConcurrentHashMap<>();
+        private final Producer producer;
+        private final AtomicLong loads = new AtomicLong();
+
+        RacyCache(Producer producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        public Box get(Integer key) {
+            Box box = values.get(key);
+            if (box == null) {
+                box = producer.apply(key);
+                loads.incrementAndGet();
+                values.put(key, box);
+            }
+            return box;
+        }
+
+        @Override
+        public Box getUnchecked(Integer key) {
+            return get(key);
+        }
+
+        @Override
+        public Map<Integer, Box> getAll(Iterable<? extends Integer> keys) {
+            Map<Integer, Box> boxes = new HashMap<>();
+            keys.forEach(key -> boxes.put(key, get(key)));
+            return boxes;
+        }
+
+        @Override
+        public CacheStats stats() {
+            return new CacheStats(0, 0, loads.get(), 0, 0, 0, 0);
+        }
+
+        @Override
+        public void forEachLoaded(BiConsumer<? super Integer, ? super Box> action) {
+            values.forEach(action);
+        }
+    }
+
+    static final class FakeTicker implements Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long delta) {
+            nanos.addAndGet(delta);
+        }
+    }
+
+    static class Round {
+        final Cache<Integer, Box> cache;
+        final Producer producer;
+        final Box[][] seen = new Box[ACTORS][KEYS];
+
+        Round(Cache<Integer, Box> cache, Producer producer) {
+            this.cache = cache;
+            this.producer = producer;
+        }
+    }
+
+    static final class ExpiryRound extends Round {
+        final FakeTicker ticker;
+
+        ExpiryRound(Cache<Integer, Box> cache, Producer producer, FakeTicker ticker) {
+            super(cache, producer);
+            this.ticker = ticker;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package cache;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cache.TestThreads.runOnMultipleThreads;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class IntCacheTest {
+
+    private static final int NUMBER_OF_TEST_THREADS = 5;
+
+    @Test
+    void whenManyKeysAdded_allAreFoundAfterResizing() {
+        AtomicInteger calls = new AtomicInteger();
+        IntCache<String> cache = new IntCache<>(key -> {
+            calls.incrementAndGet();
+            return "value-" + key;
+        }, 4);
+
+        for (int key = -5000; key < 5000; key++) {
+            cache.getUnchecked(key);
+        }
+        for (int key = -5000; key < 5000; key++) {
+            assertThat(cache.getUnchecked(key), is("value-" + key));
+        }
+
+        assertThat(cache.size(), is(10000));
+        assertThat(calls.get(), is(10000));
+    }
+
+    @RepeatedTest(3)
+    void whenCalledByMultipleThreads_callsFunctionOncePerKey() {
+        ConcurrentHashMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+        IntCache<Integer> cache = new IntCache<>(key -> {
+            calls.computeIfAbsent(key, ignored -> new AtomicInteger()).incrementAndGet();
+            return key * 2;
+        }, 4);
+
+        runOnMultipleThreads(NUMBER_OF_TEST_THREADS, () -> {
+            for (int key = 0; key < 1000; key++) {
+                assertThat(cache.getUnchecked(key), is(key * 2));
+            }
+        });
+
+        calls.values().forEach(count -> assertThat(count.get(), is(1)));
+        assertThat(calls.size(), is(1000));
+    }
+
+    @Test
+    void whenProducerFails_failureIsCachedAndRethrown() {
+        AtomicInteger calls = new AtomicInteger();
+        IntCache<String> cache = new IntCache<>(key -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException("boom");
+        });
+
+        assertThrows(RuntimeException.class, () -> cache.getUnchecked(1));
+        assertThrows(RuntimeException.class, () -> cache.getUnchecked(1));
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    void whenKeyIsCached_hitDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long threadId = Thread.currentThread().getId();
+
+        IntCache<String> cache = new IntCache<>(key -> "value-" + key);
+        for (int key = 1000; key < 2000; key++) {
+            cache.getUnchecked(key);
+        }
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < 100; round++) {
+            for (int key = 1000; key < 2000; key++) {
+                cache.getUnchecked(key);
+            }
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // boxing every key would take well over a megabyte
+        assertThat(allocated, lessThan(16 * 1024L));
+    }
+}
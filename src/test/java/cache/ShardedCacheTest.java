@@ -0,0 +1,91 @@
+package cache;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cache.TestThreads.runOnMultipleThreads;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+class ShardedCacheTest {
+
+    private static final int NUMBER_OF_TEST_THREADS = 5;
+
+    @Test
+    void whenBuiltWithSegments_isShardedAndRoundsUpToPowerOfTwo() {
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                .segments(6)
+                .recordStats()
+                .build(key -> key);
+
+        assertThat(cache, instanceOf(ShardedCache.class));
+        assertThat(((ShardedCache<Integer, Integer>) cache).segmentStats(), hasSize(8));
+    }
+
+    @RepeatedTest(3)
+    void whenCalledByMultipleThreads_callsFunctionOncePerKey() {
+        ConcurrentHashMap<Integer, AtomicInteger> calls = new ConcurrentHashMap<>();
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                .segments(4)
+                .build(key -> {
+                    calls.computeIfAbsent(key, ignored -> new AtomicInteger()).incrementAndGet();
+                    return key * 2;
+                });
+
+        runOnMultipleThreads(NUMBER_OF_TEST_THREADS, () -> {
+            for (int i = 0; i < 100; i++) {
+                assertThat(cache.getUnchecked(i), is(i * 2));
+            }
+        });
+
+        calls.values().forEach(count -> assertThat(count.get(), is(1)));
+    }
+
+    @Test
+    void whenBounded_eachSegmentHoldsItsShare() {
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                .maximumSize(64)
+                .segments(4)
+                .recordStats()
+                .build(key -> key);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.getUnchecked(i);
+        }
+
+        AtomicInteger size = new AtomicInteger();
+        cache.forEachLoaded((key, value) -> size.incrementAndGet());
+        assertThat(size.get(), lessThanOrEqualTo(64));
+        assertThat(cache.stats().missCount(), is(1000L));
+        assertThat(cache.stats().evictionCount(), is(1000L - size.get()));
+    }
+
+    @Test
+    void whenGetAll_returnsValuesInOrderWithOneBatchPerSegment() throws Exception {
+        AtomicInteger batches = new AtomicInteger();
+        Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                .segments(2)
+                .build(key -> -key, keys -> {
+                    batches.incrementAndGet();
+                    Map<Integer, Integer> values = new HashMap<>();
+                    keys.forEach(key -> values.put(key, key));
+                    return values;
+                });
+
+        Map<Integer, Integer> result = cache.getAll(Arrays.asList(5, 1, 4, 2, 3, 1));
+
+        assertThat(result.keySet(), contains(5, 1, 4, 2, 3));
+        assertThat(result.values(), contains(5, 1, 4, 2, 3));
+        assertThat(batches.get(), lessThanOrEqualTo(2));
+    }
+}
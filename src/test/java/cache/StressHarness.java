@@ -0,0 +1,114 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs many short rounds of a few actors racing on fresh state, in the style of jcstress, to shake out races that
+ * a single run of runOnMultipleThreads would only hit by luck.
+ *
+ * Each round creates new state, releases all of the actors at once with a barrier (so they collide on the same
+ * code, rather than the first one finishing before the last one starts), then runs an arbiter over the state once
+ * they're all done. The actors are dedicated threads, not the common pool, which on a small machine may have a
+ * single thread and run them one after another.
+ *
+ * Each actor is given a Random seeded from the harness seed, the round and the actor's index, and is expected to
+ * use it for its choices (which keys to read, when to yield). The exact interleaving still depends on the OS
+ * scheduler, but a failure reports its seed and round, and rerunning with the same seed repeats the same choices,
+ * which makes a rare failure far easier to reproduce.
+ */
+final class StressHarness<State> {
+    private static final long ROUND_TIMEOUT_SECONDS = 30;
+
+    private final int actors;
+    private final int rounds;
+    private final long seed;
+
+    StressHarness(int actors, int rounds, long seed) {
+        this.actors = actors;
+        this.rounds = rounds;
+        this.seed = seed;
+    }
+
+    /**
+     * Runs every round, failing on the first round where an actor or the arbiter throws.
+     *
+     * @param setup creates the state for a round
+     * @param actor runs on each actor thread, with the round's state
+     * @param arbiter runs on the calling thread after all of the actors of a round are done
+     */
+    void run(Supplier<State> setup, Actor<State> actor, Consumer<State> arbiter) {
+        ExecutorService threads = Executors.newFixedThreadPool(actors);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                State state = setup.get();
+                runRound(threads, state, actor, round);
+                try {
+                    arbiter.accept(state);
+                } catch (RuntimeException | AssertionError failure) {
+                    throw failed(round, "arbiter", failure);
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private void runRound(ExecutorService threads, State state, Actor<State> actor, int round) {
+        CyclicBarrier start = new CyclicBarrier(actors);
+        List<Future<?>> futures = new ArrayList<>(actors);
+        for (int i = 0; i < actors; i++) {
+            int index = i;
+            Random random = new Random(seed * 31 * 31 + round * 31L + index);
+            futures.add(threads.submit(() -> {
+                awaitStart(start);
+                actor.act(state, index, random);
+                return null;
+            }));
+        }
+
+        for (int i = 0; i < actors; i++) {
+            try {
+                futures.get(i).get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException ex) {
+                throw failed(round, "actor " + i, ex.getCause());
+            } catch (TimeoutException ex) {
+                throw failed(round, "actor " + i + " (timed out, possibly deadlocked)", ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw failed(round, "actor " + i + " (interrupted)", ex);
+            }
+        }
+    }
+
+    private static void awaitStart(CyclicBarrier start) throws InterruptedException {
+        try {
+            start.await();
+        } catch (BrokenBarrierException ex) {
+            throw new IllegalStateException("another actor failed to start", ex);
+        }
+    }
+
+    private AssertionError failed(int round, String who, Throwable cause) {
+        return new AssertionError("Failed in round " + round + " of " + rounds + " by " + who + " (seed=" + seed + ")", cause);
+    }
+
+    /**
+     * One of the racing threads of a round.
+     */
+    @FunctionalInterface
+    interface Actor<State> {
+        void act(State state, int index, Random random) throws Exception;
+    }
+}
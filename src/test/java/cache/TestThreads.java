@@ -0,0 +1,47 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Helpers for tests that try to provoke race conditions.
+ */
+final class TestThreads {
+
+    private TestThreads() {
+    }
+
+    /**
+     * Execute a runnable on a given number of threads. The purpose of this function is generally to
+     * attempt to focus work on a single point of code, to generate a race condition or deadlock. One run only
+     * finds a race by luck; StressHarness repeats the race over many rounds, with dedicated threads.
+     */
+    static void runOnMultipleThreads(int numOfThreads, Runnable runnable) {
+        // Use this latch to ensure threads don't get a head start
+        CountDownLatch startThreadLatch = new CountDownLatch(1);
+
+        // create N threads; all wait on the latch (so they start at the same time), and then execute the runnable
+        List<CompletableFuture<Void>> completableFutureList = new ArrayList<>();
+        for (int i = 0; i < numOfThreads; i++) {
+            completableFutureList.add(CompletableFuture.runAsync(() -> {
+                try {
+                    startThreadLatch.await();
+                } catch (InterruptedException interrupt) {
+                    // we can't throw a checked exception from a lambda; so we restore the
+                    // interrupt status on the current thread (Java Concurrency in Practice, ch 5.4)
+                    Thread.currentThread().interrupt();
+                }
+
+                runnable.run();
+            }));
+        }
+
+        // start threads
+        startThreadLatch.countDown();
+
+        // block until all threads are complete
+        CompletableFuture.allOf(completableFutureList.toArray(new CompletableFuture[0])).join();
+    }
+}
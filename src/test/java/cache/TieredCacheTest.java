@@ -0,0 +1,186 @@
+package cache;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cache.TestThreads.runOnMultipleThreads;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TieredCacheTest {
+
+    private static final int SLAB_BYTES = 1024;
+
+    @Nested
+    @DisplayName("OffHeapStore")
+    class Store {
+
+        @Test
+        void whenValuesPut_theyAreReadBack() {
+            OffHeapStore<Integer, String> store = new OffHeapStore<>(4 * SLAB_BYTES, SLAB_BYTES, Codec.strings());
+
+            for (int key = 0; key < 50; key++) {
+                store.put(key, "value-" + key);
+            }
+
+            for (int key = 0; key < 50; key++) {
+                assertThat(store.get(key), is("value-" + key));
+            }
+            assertThat(store.get(50), is(nullValue()));
+            assertThat(store.hitCount(), is(50L));
+            assertThat(store.missCount(), is(1L));
+        }
+
+        @Test
+        void whenKeyPutAgain_latestValueIsRead() {
+            OffHeapStore<Integer, String> store = new OffHeapStore<>(4 * SLAB_BYTES, SLAB_BYTES, Codec.strings());
+
+            store.put(1, "first");
+            store.put(1, "second");
+
+            assertThat(store.get(1), is("second"));
+            assertThat(store.size(), is(1L));
+        }
+
+        @Test
+        void whenSlabsRunOut_oldestValuesAreEvicted() {
+            OffHeapStore<Integer, BigInteger> store = new OffHeapStore<>(4 * SLAB_BYTES, SLAB_BYTES, Codec.bigIntegers());
+
+            // most values take 104 bytes with their length, so 9 fit in a slab, and 36 in the whole store
+            for (int key = 0; key < 100; key++) {
+                store.put(key, BigInteger.valueOf(key).shiftLeft(790));
+            }
+
+            assertThat(store.get(0), is(nullValue()));
+            assertThat(store.get(99), is(BigInteger.valueOf(99).shiftLeft(790)));
+            assertThat(store.size(), lessThanOrEqualTo(36L));
+            store.forEach((key, value) -> assertThat(value, is(BigInteger.valueOf(key).shiftLeft(790))));
+        }
+
+        @Test
+        void whenValueBiggerThanSlab_itIsNotStored() {
+            OffHeapStore<Integer, String> store = new OffHeapStore<>(4 * SLAB_BYTES, SLAB_BYTES, Codec.strings());
+            char[] big = new char[SLAB_BYTES];
+            Arrays.fill(big, 'x');
+
+            assertThat(store.put(1, new String(big)), is(false));
+            assertThat(store.get(1), is(nullValue()));
+        }
+
+        @Test
+        void whenWrittenAndReadByMultipleThreads_readsAreNeverCorrupt() {
+            OffHeapStore<Integer, String> store = new OffHeapStore<>(2 * SLAB_BYTES, SLAB_BYTES, Codec.strings());
+            AtomicInteger nextKey = new AtomicInteger();
+
+            runOnMultipleThreads(4, () -> {
+                for (int i = 0; i < 2000; i++) {
+                    int key = nextKey.getAndIncrement();
+                    store.put(key, "value-" + key);
+                    String value = store.get(key - 10);
+                    if (value != null) {
+                        assertThat(value, is("value-" + (key - 10)));
+                    }
+                }
+            });
+        }
+    }
+
+    @Nested
+    @DisplayName("TieredCache")
+    class Tiered {
+
+        @Test
+        void whenEvictedFromFront_valueIsPromotedFromOffHeapWithoutReloading() {
+            AtomicInteger calls = new AtomicInteger();
+            TieredCache<Integer, String> cache = (TieredCache<Integer, String>) CacheBuilder.<Integer, String>newBuilder()
+                    .maximumSize(10)
+                    .executor(Runnable::run)
+                    .offHeap(4 * 1024 * 1024, Codec.strings())
+                    .build(key -> {
+                        calls.incrementAndGet();
+                        return "value-" + key;
+                    });
+
+            for (int key = 0; key < 200; key++) {
+                cache.getUnchecked(key);
+            }
+            for (int key = 0; key < 200; key++) {
+                assertThat(cache.getUnchecked(key), is("value-" + key));
+            }
+
+            assertThat(calls.get(), is(200));
+            assertThat(cache.offHeap().size(), is(200L));
+            assertThat(cache.offHeap().hitCount() > 0, is(true));
+        }
+
+        @Test
+        void whenBatchLoaded_onlyKeysMissingOffHeapAreProduced() throws Exception {
+            AtomicInteger batchedKeys = new AtomicInteger();
+            Cache<Integer, Integer> cache = CacheBuilder.<Integer, Integer>newBuilder()
+                    .maximumSize(2)
+                    .executor(Runnable::run)
+                    .offHeap(4 * 1024 * 1024, Codec.integers())
+                    .build(key -> key * 2, keys -> {
+                        batchedKeys.addAndGet(keys.size());
+                        Map<Integer, Integer> values = new HashMap<>();
+                        keys.forEach(key -> values.put(key, key * 2));
+                        return values;
+                    });
+
+            cache.getAll(Arrays.asList(1, 2, 3, 4, 5, 6));
+            Map<Integer, Integer> values = cache.getAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7));
+
+            assertThat(values.get(7), is(14));
+            assertThat(values.get(1), is(2));
+            assertThat(batchedKeys.get(), is(7));
+        }
+
+        @Test
+        void forEachLoaded_includesValuesOnlyHeldOffHeap() {
+            Cache<Integer, String> cache = CacheBuilder.<Integer, String>newBuilder()
+                    .maximumSize(5)
+                    .executor(Runnable::run)
+                    .offHeap(4 * 1024 * 1024, Codec.strings())
+                    .build(key -> "value-" + key);
+            for (int key = 0; key < 50; key++) {
+                cache.getUnchecked(key);
+            }
+
+            Map<Integer, String> seen = new HashMap<>();
+            cache.forEachLoaded(seen::put);
+
+            assertThat(seen.size(), is(50));
+            seen.forEach((key, value) -> assertThat(value, is("value-" + key)));
+        }
+
+        @Test
+        void whenCombinedWithRefresh_buildFails() {
+            CacheBuilder<Integer, String> builder = CacheBuilder.<Integer, String>newBuilder()
+                    .maximumSize(5)
+                    .refreshAfterWrite(1, TimeUnit.MINUTES)
+                    .offHeap(1024 * 1024, Codec.strings());
+
+            assertThrows(IllegalStateException.class, () -> builder.build(key -> "value"));
+        }
+
+        @Test
+        void whenFrontIsUnbounded_buildFails() {
+            CacheBuilder<Integer, String> builder = CacheBuilder.<Integer, String>newBuilder()
+                    .offHeap(1024 * 1024, Codec.strings());
+
+            assertThrows(IllegalStateException.class, () -> builder.build(key -> "value"));
+            assertThrows(IllegalStateException.class, () -> builder.buildAsync(key -> "value"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package jcip.synchronizationbasics;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FibonacciEngineTest {
+
+    @Test
+    void whenComputed_matchesTheAdditionLoop() {
+        FibonacciEngine engine = new FibonacciEngine();
+
+        BigInteger a = BigInteger.ZERO;
+        BigInteger b = BigInteger.ONE;
+        for (int n = 0; n <= 1000; n++) {
+            assertThat("n=" + n, engine.fibonacci(n), is(a));
+            BigInteger next = a.add(b);
+            a = b;
+            b = next;
+        }
+    }
+
+    @Test
+    void whenComputedInAnyOrder_usingCheckpoints_matchesFreshEngine() {
+        FibonacciEngine engine = new FibonacciEngine(16);
+        int[] inputs = {5000, 4999, 5001, 2500, 5100, 10000, 1, 0, 9999, 7777, 5064, 5065};
+
+        for (int n : inputs) {
+            assertThat("n=" + n, engine.fibonacci(n), is(new FibonacciEngine().fibonacci(n)));
+        }
+        assertThat(engine.checkpointCount(), lessThanOrEqualTo(16));
+    }
+
+    @Test
+    void whenVeryLargeNumbersComputed_checkpointMemoryStaysBounded() {
+        long maximumBytes = 64 * 1024;
+        FibonacciEngine engine = new FibonacciEngine(1024, maximumBytes, ForkJoinPool.commonPool(), Integer.MAX_VALUE);
+
+        // F(1,000,000) is about 87 KB on its own, so the last few pairs are each bigger than the whole table, and
+        // the pairs of around 7 KB near the top of the smaller numbers soon fill it up
+        for (int n : new int[] {1_000_000, 999_000, 600_000, 1_000_001, 45_001, 42_345, 39_999, 37_777, 44_444}) {
+            assertThat("n=" + n, engine.fibonacci(n), is(new FibonacciEngine().fibonacci(n)));
+            assertThat(engine.checkpointBytes(), lessThanOrEqualTo(maximumBytes));
+        }
+        assertThat(engine.checkpointCount(), greaterThan(0));
+    }
+
+    @Test
+    void whenCalledByMultipleThreads_allResultsAreCorrect() throws Exception {
+        FibonacciEngine engine = new FibonacciEngine(8);
+        BigInteger expected = new FibonacciEngine().fibonacci(20000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<BigInteger>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                int offset = i % 5;
+                results.add(executor.submit(() -> {
+                    engine.fibonacci(20000 - offset * 1000);
+                    return engine.fibonacci(20000);
+                }));
+            }
+            for (Future<BigInteger> result : results) {
+                assertThat(result.get(), is(expected));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void whenRangeRequested_returnsEachNumberInOrder() {
+        FibonacciEngine engine = new FibonacciEngine();
+
+        List<BigInteger> range = engine.range(995, 1000);
+
+        assertThat(range.size(), is(6));
+        for (int i = 0; i < range.size(); i++) {
+            assertThat(range.get(i), is(new FibonacciEngine().fibonacci(995 + i)));
+        }
+    }
+
+    @Test
+    void whenBatchRequested_returnsNumbersInRequestedOrder() {
+        FibonacciEngine engine = new FibonacciEngine();
+
+        List<BigInteger> batch = engine.batch(50, 9, 13, 9, 5000);
+
+        assertThat(batch, contains(
+                new BigInteger("12586269025"),
+                new BigInteger("34"),
+                new BigInteger("233"),
+                new BigInteger("34"),
+                new FibonacciEngine().fibonacci(5000)));
+    }
+
+    @Test
+    void whenNegative_throws() {
+        assertThrows(IllegalArgumentException.class, () -> new FibonacciEngine().fibonacci(-1));
+    }
+}
@@ -0,0 +1,93 @@
+package jcip.synchronizationbasics;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.Test;
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+class LoadShedderTest {
+
+    @Test
+    void whenUnderLimits_handlerRuns() throws Exception {
+        LoadShedder shedder = new LoadShedder(config(0, 10), new QueuedThreadPool(), new ServiceMetrics());
+        Response response = mock(Response.class);
+
+        Object result = shedder.guard((request, ignored) -> "ok").handle(mock(Request.class), response);
+
+        assertThat(result, is("ok"));
+        verifyZeroInteractions(response);
+    }
+
+    @Test
+    void whenQueueTooDeep_requestIsShedWithRetryAfter() {
+        QueuedThreadPool pool = mock(QueuedThreadPool.class);
+        when(pool.getQueueSize()).thenReturn(10);
+        ServiceMetrics metrics = new ServiceMetrics();
+        LoadShedder shedder = new LoadShedder(config(0, 10), pool, metrics);
+        Response response = mock(Response.class);
+
+        HaltException halt = assertThrows(HaltException.class,
+                () -> shedder.guard((request, ignored) -> "ok").handle(mock(Request.class), response));
+
+        assertThat(halt.statusCode(), is(503));
+        verify(response).header("Retry-After", "3");
+        assertThat(metrics.scrape(), containsString("fibonacci_requests_shed_total 1\n"));
+    }
+
+    @Test
+    void whenTooManyRequestsInFlight_extraRequestsAreShed() throws Exception {
+        LoadShedder shedder = new LoadShedder(config(1, 10), new QueuedThreadPool(), new ServiceMetrics());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Route guarded = shedder.guard((request, response) -> {
+            started.countDown();
+            release.await();
+            return "ok";
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> first = executor.submit(() -> guarded.handle(mock(Request.class), mock(Response.class)));
+            started.await();
+
+            assertThrows(HaltException.class, () -> guarded.handle(mock(Request.class), mock(Response.class)));
+
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS), is("ok"));
+            // the slot is free again once the first request is done
+            assertThat(guarded.handle(mock(Request.class), mock(Response.class)), is("ok"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void whenConfigInconsistent_itIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ServerConfig(4, 8, 1000, 10, 5, 0, 1, false));
+        assertThrows(IllegalArgumentException.class, () -> new ServerConfig(8, 4, 1000, 0, 5, 0, 1, false));
+        assertThrows(IllegalArgumentException.class, () -> new ServerConfig(8, 4, 1000, 10, 5, -1, 1, false));
+        // shedding could never start before the queue overflowed
+        assertThrows(IllegalArgumentException.class, () -> new ServerConfig(8, 4, 1000, 10, 10, 0, 1, false));
+    }
+
+    private static ServerConfig config(int maxConcurrentRequests, int shedQueueDepth) {
+        return new ServerConfig(8, 4, 1000, 100, shedQueueDepth, maxConcurrentRequests, 3, false);
+    }
+}
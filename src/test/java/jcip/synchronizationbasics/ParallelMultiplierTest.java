@@ -0,0 +1,59 @@
+package jcip.synchronizationbasics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class ParallelMultiplierTest {
+    private final Random random = new Random(42);
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void whenSplit_matchesBigIntegerMultiply() {
+        ParallelMultiplier multiplier = new ParallelMultiplier(pool, 64);
+
+        for (int[] bits : new int[][] {{1, 1}, {64, 64}, {1000, 1000}, {5001, 4999}, {20_000, 300}, {100_000, 100_000}}) {
+            BigInteger a = new BigInteger(bits[0], random);
+            BigInteger b = new BigInteger(bits[1], random);
+            String sizes = bits[0] + "x" + bits[1];
+            assertThat(sizes, multiplier.multiply(a, b), is(a.multiply(b)));
+            assertThat(sizes, multiplier.multiply(a.negate(), b), is(a.negate().multiply(b)));
+            assertThat(sizes, multiplier.multiply(a.negate(), b.negate()), is(a.multiply(b)));
+            assertThat(sizes, multiplier.multiply(a, a), is(a.multiply(a)));
+        }
+    }
+
+    @Test
+    void whenMultiplyingAll_eachProductIsCorrect() {
+        ParallelMultiplier multiplier = new ParallelMultiplier(pool, 64);
+        BigInteger[] xs = {new BigInteger(3000, random), new BigInteger(7000, random), BigInteger.ZERO};
+        BigInteger[] ys = {new BigInteger(3000, random), xs[1], new BigInteger(9000, random)};
+
+        BigInteger[] products = multiplier.multiplyAll(xs, ys);
+
+        for (int i = 0; i < xs.length; i++) {
+            assertThat(products[i], is(xs[i].multiply(ys[i])));
+        }
+    }
+
+    @Test
+    void whenEngineRunsInParallel_matchesSequentialEngine() {
+        FibonacciEngine parallel = new FibonacciEngine(16, pool, 64);
+        FibonacciEngine sequential = new FibonacciEngine(16, pool, Integer.MAX_VALUE);
+
+        for (int n : new int[] {0, 1, 2, 93, 1000, 54_321, 200_000}) {
+            assertThat("n=" + n, parallel.fibonacci(n), is(sequential.fibonacci(n)));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jcip.synchronizationbasics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class RadixWriterTest {
+    private final Random random = new Random(42);
+
+    @Test
+    void whenWritingDecimal_matchesToString() throws Exception {
+        for (int bits : new int[] {1, 64, 8191, 8192, 50_000, 200_000}) {
+            BigInteger number = new BigInteger(bits, random);
+            assertThat("bits=" + bits, decimal(number), is(number.toString()));
+            assertThat("bits=" + bits, decimal(number.negate()), is(number.negate().toString()));
+        }
+    }
+
+    @Test
+    void whenWritingDecimal_withZeroRunsInTheMiddle_keepsTheZeros() throws Exception {
+        BigInteger number = BigInteger.TEN.pow(40_000).add(BigInteger.valueOf(7));
+
+        assertThat(decimal(number), is(number.toString()));
+    }
+
+    @Test
+    void whenWritingHex_matchesToString() throws Exception {
+        for (int bits : new int[] {1, 4, 8, 9, 100_000}) {
+            BigInteger number = new BigInteger(bits, random).setBit(bits - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RadixWriter.writeHex(number, out);
+            assertThat("bits=" + bits, out.toString(StandardCharsets.US_ASCII.name()), is(number.toString(16)));
+        }
+    }
+
+    @Test
+    void whenWritingBinary_roundTrips() throws Exception {
+        BigInteger number = new FibonacciEngine().fibonacci(10_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        RadixWriter.writeBinary(number, out);
+
+        assertThat(new BigInteger(1, out.toByteArray()), is(number));
+    }
+
+    private static String decimal(BigInteger number) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RadixWriter.writeDecimal(number, out);
+        return out.toString(StandardCharsets.US_ASCII.name());
+    }
+}
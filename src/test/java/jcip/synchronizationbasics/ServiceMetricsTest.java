@@ -0,0 +1,79 @@
+package jcip.synchronizationbasics;
+
+import cache.CacheStats;
+import org.junit.jupiter.api.Test;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ServiceMetricsTest {
+
+    @Test
+    void histogram_bucketsAreCumulative() {
+        ServiceMetrics.Histogram histogram = new ServiceMetrics.Histogram(new long[] {10, 100});
+        histogram.record(5);
+        histogram.record(10);
+        histogram.record(50);
+        histogram.record(1000);
+
+        StringBuilder out = new StringBuilder();
+        histogram.writeTo(out, "size", "", 1);
+
+        assertThat(out.toString(), is(
+                "size_bucket{le=\"10\"} 2\n"
+                        + "size_bucket{le=\"100\"} 3\n"
+                        + "size_bucket{le=\"+Inf\"} 4\n"
+                        + "size_sum 1065.0\n"
+                        + "size_count 4\n"));
+    }
+
+    @Test
+    void whenHandlerTimed_requestsAndFailuresAreCountedByHandler() throws Exception {
+        ServiceMetrics metrics = new ServiceMetrics();
+        Route succeeds = metrics.timed(new Succeeds());
+        Route fails = metrics.timed(new Fails());
+
+        succeeds.handle(null, null);
+        succeeds.handle(null, null);
+        assertThrows(IllegalStateException.class, () -> fails.handle(null, null));
+
+        String scraped = metrics.scrape();
+        assertThat(scraped, containsString("fibonacci_request_duration_seconds_count{handler=\"Succeeds\"} 2\n"));
+        assertThat(scraped, containsString("fibonacci_request_duration_seconds_count{handler=\"Fails\"} 1\n"));
+        assertThat(scraped, containsString("fibonacci_request_errors_total{handler=\"Succeeds\"} 0\n"));
+        assertThat(scraped, containsString("fibonacci_request_errors_total{handler=\"Fails\"} 1\n"));
+    }
+
+    @Test
+    void scrape_includesCacheAndJvmMetrics() {
+        ServiceMetrics metrics = new ServiceMetrics();
+        metrics.registerCache("test", () -> new CacheStats(7, 3, 3, 0, 0, 1, 0));
+
+        String scraped = metrics.scrape();
+
+        assertThat(scraped, containsString("fibonacci_cache_hits_total{cache=\"test\"} 7\n"));
+        assertThat(scraped, containsString("fibonacci_cache_misses_total{cache=\"test\"} 3\n"));
+        assertThat(scraped, containsString("# TYPE jvm_gc_collections_total counter\n"));
+        assertThat(scraped, containsString("jvm_threads_current "));
+        assertThat(scraped, containsString("jvm_memory_heap_used_bytes "));
+    }
+
+    private static class Succeeds implements Route {
+        @Override
+        public Object handle(Request request, Response response) {
+            return "ok";
+        }
+    }
+
+    private static class Fails implements Route {
+        @Override
+        public Object handle(Request request, Response response) {
+            throw new IllegalStateException("boom");
+        }
+    }
+}